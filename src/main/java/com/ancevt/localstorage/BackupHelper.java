@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import lombok.SneakyThrows;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Streams snapshots as {@code key=value} lines without building the whole text in memory. Incremental backups write
+ * {@code key=null} for removed keys, so applying them with {@link LocalStorage#importFrom(Path)} in order restores
+ * the storage.
+ */
+class BackupHelper {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * @param from snapshot of the previous checkpoint, {@code null} to write all entries of {@code to}
+     * @return number of lines written
+     */
+    static int write(@NotNull OutputStream outputStream,
+                     LocalStorageSnapshot from,
+                     @NotNull LocalStorageSnapshot to) throws IOException {
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        int[] count = {0};
+
+        if (from == null) {
+            for (Map.Entry<String, Object> entry : to.getEntries()) {
+                writeLine(writer, entry.getKey(), entry.getValue());
+                count[0]++;
+            }
+        } else {
+            from.getEntries().forEachChange(to.getEntries(), (key, oldValue, newValue) -> {
+                writeChange(writer, key, newValue);
+                count[0]++;
+            });
+        }
+
+        writer.flush();
+        return count[0];
+    }
+
+    /**
+     * Writes to a temporary file first and moves it to {@code filePath}, so an interrupted backup never looks
+     * complete
+     */
+    static int write(@NotNull Path filePath, LocalStorageSnapshot from, @NotNull LocalStorageSnapshot to) throws IOException {
+        Path tempFilePath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        int count;
+        try (OutputStream outputStream = Files.newOutputStream(tempFilePath)) {
+            count = write(outputStream, from, to);
+        }
+        try {
+            Files.move(tempFilePath, filePath, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFilePath, filePath, REPLACE_EXISTING);
+        }
+        return count;
+    }
+
+    @SneakyThrows
+    private static void writeChange(Writer writer, String key, Object value) {
+        writeLine(writer, key, value);
+    }
+
+    private static void writeLine(Writer writer, String key, Object value) throws IOException {
+        writer.write(key);
+        writer.write(LocalStorage.DELIMITER);
+        writer.write(value != null ? BinaryFormatHelper.toEscapedText(value) : "null");
+        writer.write('\n');
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary storage file format and the text escaping of binary values.
+ * <p>
+ * File layout: {@code "LSB" version} followed by records of
+ * {@code type(1) keyLength(varint) key(UTF-8) valueLength(varint) value checksum(4)}, type 0 is a string value stored
+ * as UTF-8, type 1 is a raw byte value. The checksum is the CRC32C of the preceding record bytes, version 1 records
+ * have none. A damaged record of version 2 is found by its checksum, and the next intact record by trying the
+ * following offsets, so recovery loses only the damaged records.
+ * <p>
+ * In text form binary values are written as {@value #TEXT_PREFIX} followed by Base64. Strings starting with either
+ * prefix are written with {@value #STRING_PREFIX} in front, so they never load as binary.
+ */
+class BinaryFormatHelper {
+
+    static final String TEXT_PREFIX = "{base64}";
+    static final String STRING_PREFIX = "{string}";
+
+    private static final byte[] MAGIC = {'L', 'S', 'B'};
+    private static final byte VERSION = 2;
+    private static final byte VERSION_WITHOUT_CHECKSUMS = 1;
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_BYTES = 1;
+
+    static boolean isBinaryFormat(byte @NotNull [] bytes) {
+        return bytes.length >= MAGIC.length + 1 && Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Peeks at the start of the stream without consuming it
+     */
+    static boolean isBinaryFormat(@NotNull InputStream inputStream) throws IOException {
+        inputStream.mark(MAGIC.length + 1);
+        byte[] header = inputStream.readNBytes(MAGIC.length + 1);
+        inputStream.reset();
+        return isBinaryFormat(header);
+    }
+
+    static byte @NotNull [] write(@NotNull Iterable<Map.Entry<String, Object>> entries) {
+        RecordOutputStream outputStream = new RecordOutputStream();
+        outputStream.writeBytes(MAGIC);
+        outputStream.write(VERSION);
+
+        CRC32C crc = new CRC32C();
+        for (Map.Entry<String, Object> entry : entries) {
+            Object value = SealedValue.open(entry.getValue());
+            byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value instanceof byte[] bytes ? bytes : ((String) value).getBytes(StandardCharsets.UTF_8);
+
+            int start = outputStream.size();
+            outputStream.write(value instanceof byte[] ? TYPE_BYTES : TYPE_STRING);
+            writeVarInt(outputStream, keyBytes.length);
+            outputStream.writeBytes(keyBytes);
+            writeVarInt(outputStream, valueBytes.length);
+            outputStream.writeBytes(valueBytes);
+
+            outputStream.writeChecksum(crc, start);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    static void read(byte @NotNull [] bytes, @NotNull RecordSink sink) {
+        if (!isBinaryFormat(bytes)) throw new LocalStorageException("Not a binary local storage file");
+        byte version = bytes[MAGIC.length];
+        if (version != VERSION && version != VERSION_WITHOUT_CHECKSUMS) {
+            throw new LocalStorageException("Unsupported binary local storage version " + version);
+        }
+        boolean checksums = version == VERSION;
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, MAGIC.length + 1, bytes.length - MAGIC.length - 1);
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            try {
+                readRecord(buffer, checksums, sink);
+            } catch (LocalStorageException e) {
+                sink.problem("Damaged record at offset " + start, e);
+                if (!checksums || !resync(buffer, start + 1)) return;
+            }
+        }
+    }
+
+    /**
+     * Positions the buffer at the first intact record from the offset on
+     *
+     * @return {@code false} if there is none
+     */
+    private static boolean resync(ByteBuffer buffer, int offset) {
+        for (; offset < buffer.limit(); offset++) {
+            buffer.position(offset);
+            try {
+                readRecord(buffer, true, null);
+                buffer.position(offset);
+                return true;
+            } catch (LocalStorageException e) {
+                // not a record boundary
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param sink receives the record, {@code null} to only check it
+     */
+    private static void readRecord(ByteBuffer buffer, boolean checksum, RecordSink sink) {
+        int start = buffer.position();
+        try {
+            byte type = buffer.get();
+            byte[] keyBytes = readBytes(buffer);
+            byte[] value = readBytes(buffer);
+            if (checksum) {
+                CRC32C crc = new CRC32C();
+                crc.update(buffer.duplicate().position(start).limit(buffer.position()));
+                if (buffer.getInt() != (int) crc.getValue()) throw new LocalStorageException("Record checksum mismatch");
+            }
+
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            Object decoded = switch (type) {
+                case TYPE_STRING -> new String(value, StandardCharsets.UTF_8);
+                case TYPE_BYTES -> value;
+                default -> throw new LocalStorageException("Unknown value type %d of key %s".formatted(type, key));
+            };
+            if (sink != null) sink.accept(key, decoded);
+        } catch (BufferUnderflowException e) {
+            throw new LocalStorageException("Binary local storage file is truncated", e);
+        }
+    }
+
+    /**
+     * @return string values as is, binary values escaped as {@value #TEXT_PREFIX} and Base64
+     */
+    static String toText(Object value) {
+        value = SealedValue.open(value);
+        if (value instanceof byte[] bytes) return TEXT_PREFIX + Base64.getEncoder().encodeToString(bytes);
+        return (String) value;
+    }
+
+    /**
+     * @return {@link #toText(Object)}, with strings that start with a prefix escaped, as written to text files
+     */
+    static String toEscapedText(Object value) {
+        value = SealedValue.open(value);
+        if (value instanceof String string && (string.startsWith(TEXT_PREFIX) || string.startsWith(STRING_PREFIX))) {
+            return STRING_PREFIX + string;
+        }
+        return toText(value);
+    }
+
+    /**
+     * @return raw bytes for escaped binary values, the unescaped string otherwise
+     */
+    static @NotNull Object fromText(@NotNull String text) {
+        if (text.startsWith(STRING_PREFIX)) return text.substring(STRING_PREFIX.length());
+        if (text.startsWith(TEXT_PREFIX)) {
+            try {
+                return Base64.getDecoder().decode(text.substring(TEXT_PREFIX.length()));
+            } catch (IllegalArgumentException e) {
+                return text;
+            }
+        }
+        return text;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map.Entry<String, String> toTextEntry(@NotNull Map.Entry<String, Object> entry) {
+        if (entry.getValue() instanceof String) return (Map.Entry<String, String>) (Map.Entry<String, ?>) entry;
+        return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), toText(entry.getValue()));
+    }
+
+    static void writeVarInt(@NotNull ByteArrayOutputStream outputStream, int value) {
+        while ((value & ~0x7F) != 0) {
+            outputStream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+    }
+
+    static int readVarInt(@NotNull ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new LocalStorageException("Malformed variable length integer");
+    }
+
+    private static byte[] readBytes(@NotNull ByteBuffer buffer) {
+        int length = readVarInt(buffer);
+        if (length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static class RecordOutputStream extends ByteArrayOutputStream {
+
+        /**
+         * Appends the CRC32C of the bytes written since the offset
+         */
+        void writeChecksum(CRC32C crc, int offset) {
+            crc.reset();
+            crc.update(buf, offset, count - offset);
+            int checksum = (int) crc.getValue();
+            write(checksum >>> 24);
+            write(checksum >>> 16);
+            write(checksum >>> 8);
+            write(checksum);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Prepares bulk loaded entries outside the writer lock: one pass collecting them, a parallel sort only if the source
+ * is not sorted, and deduplication. Merging with the current data and building the tree take O(N + M) afterwards.
+ */
+class BulkLoadHelper {
+
+    private static final int DEFAULT_CAPACITY = 1 << 10;
+
+    /**
+     * @param expectedSize size of the source to pre-size the buffers with, {@code -1} if unknown
+     * @return sorted batch without duplicate keys, the last value of a key wins
+     */
+    static @NotNull Batch collect(@NotNull Iterator<? extends Map.Entry<String, ?>> source, int expectedSize) {
+        List<Map.Entry<String, Object>> entries = new ArrayList<>(expectedSize >= 0 ? expectedSize : DEFAULT_CAPACITY);
+        boolean sorted = true;
+        String previousKey = null;
+
+        while (source.hasNext()) {
+            Map.Entry<String, ?> entry = source.next();
+            String key = Objects.requireNonNull(entry.getKey());
+            Object value = Objects.requireNonNull(entry.getValue());
+            value = value instanceof byte[] bytes ? bytes.clone() : String.valueOf(value);
+
+            if (previousKey != null && previousKey.compareTo(key) >= 0) sorted = false;
+            previousKey = key;
+            entries.add(Map.entry(key, value));
+        }
+
+        @SuppressWarnings("unchecked")
+        Map.Entry<String, Object>[] array = entries.toArray(Map.Entry[]::new);
+        // stable, so the last of equal keys stays last
+        if (!sorted) Arrays.parallelSort(array, Map.Entry.comparingByKey());
+
+        String[] keys = new String[array.length];
+        Object[] values = new Object[array.length];
+        int size = 0;
+        for (Map.Entry<String, Object> entry : array) {
+            if (size > 0 && keys[size - 1].equals(entry.getKey())) {
+                values[size - 1] = entry.getValue();
+            } else {
+                keys[size] = entry.getKey();
+                values[size] = entry.getValue();
+                size++;
+            }
+        }
+        return new Batch(keys, values, size);
+    }
+
+    /**
+     * @return balanced tree of the current entries overwritten by the batch
+     */
+    static @NotNull PersistentTreeMap<Object> merge(@NotNull PersistentTreeMap<Object> current, @NotNull Batch batch) {
+        if (current.isEmpty()) return PersistentTreeMap.ofSorted(batch.keys, batch.values, batch.size);
+
+        int capacity = current.size() + batch.size;
+        String[] keys = new String[capacity];
+        Object[] values = new Object[capacity];
+        int size = 0;
+        int index = 0;
+
+        for (Map.Entry<String, Object> entry : current) {
+            while (index < batch.size && batch.keys[index].compareTo(entry.getKey()) < 0) {
+                keys[size] = batch.keys[index];
+                values[size++] = batch.values[index++];
+            }
+            if (index < batch.size && batch.keys[index].equals(entry.getKey())) {
+                keys[size] = batch.keys[index];
+                values[size++] = batch.values[index++];
+            } else {
+                keys[size] = entry.getKey();
+                values[size++] = entry.getValue();
+            }
+        }
+        while (index < batch.size) {
+            keys[size] = batch.keys[index];
+            values[size++] = batch.values[index++];
+        }
+
+        return PersistentTreeMap.ofSorted(keys, values, size);
+    }
+
+    record Batch(String[] keys, Object[] values, int size) {
+    }
+}
@@ -31,31 +31,31 @@ class DirectoryHelper {
 
     @SneakyThrows
     static @NotNull Path createOrGetDirectory(@NotNull LocalStorage localStorage) {
-        if (localStorage.getDirectoryPath() == null && localStorage.getStorageId() != null) {
+        Path dir = getDirectory(localStorage.getStorageId(), localStorage.getDirectoryPath());
+        if (!Files.exists(dir)) {
+            Files.createDirectories(dir);
+        }
+        return dir;
+    }
 
+    static @NotNull Path getDirectory(String storageId, String directoryPath) {
+        if (directoryPath == null && storageId != null) {
             String homeDir = System.getProperty("user.home");
 
-            Path dir;
             if (isWindows()) {
-                dir = Path.of(homeDir + "\\AppData\\Roaming\\" + localStorage.getStorageId());
+                return Path.of(homeDir + "\\AppData\\Roaming\\" + storageId);
             } else {
-                dir = Path.of(homeDir + "/.local/share/" + localStorage.getStorageId());
+                return Path.of(homeDir + "/.local/share/" + storageId);
             }
-
-            if (!Files.exists(dir)) {
-                Files.createDirectories(dir);
-            }
-
-            return dir;
         } else {
-            Path dir = Path.of(localStorage.getDirectoryPath() + File.separatorChar + localStorage.getStorageId());
-            if (!Files.exists(dir)) {
-                Files.createDirectories(dir);
-            }
-            return dir;
+            return Path.of(directoryPath + File.separatorChar + storageId);
         }
     }
 
+    static @NotNull Path getFilePath(String storageId, String directoryPath, String filename) {
+        return Path.of(getDirectory(storageId, directoryPath).toString() + File.separatorChar + filename);
+    }
+
     @SneakyThrows
     static void deleteDirectoryIfEmpty(@NotNull LocalStorage localStorage) {
         if (localStorage.getDirectoryPath() == null && localStorage.getStorageId() != null) {
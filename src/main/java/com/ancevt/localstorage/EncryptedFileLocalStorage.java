@@ -19,80 +19,147 @@ package com.ancevt.localstorage;
 
 
 import com.ancevt.util.args.Args;
-import lombok.SneakyThrows;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.util.StringTokenizer;
 
 public class EncryptedFileLocalStorage extends FileLocalStorage {
 
     private final EncryptionHelper encryptionHelper;
-
-    EncryptedFileLocalStorage(@NotNull String filename,
-                              boolean saveOnWrite,
-                              String storageId,
-                              String directoryPath) {
-
-        super(filename, saveOnWrite, storageId, directoryPath);
-
+    private final LocalStorageEncryption encryption;
+    private final LocalStorageKeyType keyType;
+
+    /**
+     * Data key of {@link LocalStorageEncryption#VALUES} kept between saves, accessed under the I/O lock
+     */
+    private EntryEncryptionHelper entryEncryptionHelper;
+
+    EncryptedFileLocalStorage(@NotNull LocalStorageConfig config) {
+        super(config);
+        encryption = config.encryption();
+        keyType = config.keyType();
         encryptionHelper = new EncryptionHelper(this);
+        encryptionHelper.prewarm(getExecutor());
+    }
 
-        Path dir = DirectoryHelper.createOrGetDirectory(this);
-
-        if (Files.exists(Path.of(dir.toString() + File.separatorChar + filename))) {
-            if (encryptionHelper.keyPairExists()) {
-                try {
-                    load();
-                } catch (LocalStorageException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    @Override
+    protected void open() {
+        if (encryptionHelper.keyPairExists()) super.open();
     }
 
-    @SneakyThrows
     @Override
     public LocalStorage deleteResources() {
-        clear();
-        Path dir = DirectoryHelper.createOrGetDirectory(this);
+        super.deleteResources();
         encryptionHelper.deleteKeys();
-        Files.deleteIfExists(Path.of(dir.toString() + File.separatorChar + getFilename()));
+        entryEncryptionHelper = null;
         DirectoryHelper.deleteDirectoryIfEmpty(this);
         return this;
     }
 
-    @SneakyThrows
+    /**
+     * Not supported, the numeric file is not encrypted
+     */
     @Override
-    public LocalStorage load() {
-        Path dir = DirectoryHelper.createOrGetDirectory(this);
-
-        String decrypt = encryptionHelper.decrypt(Files.readAllBytes(Path.of(dir.toString() + File.separatorChar + getFilename())));
-        decrypt.lines().forEach(line -> {
-            StringTokenizer stringTokenizer = new StringTokenizer(line, DELIMITER);
-            String key = stringTokenizer.nextToken();
-            String value = stringTokenizer.nextToken();
-            data.put(key, value);
-        });
-        return this;
+    public MappedNumbers numbers() {
+        throw new LocalStorageException("Numeric storage is not encrypted, it is not supported by "
+                + getClass().getSimpleName());
+    }
+
+    /**
+     * Generates a new key pair of {@link #getKeyType()} and rewrites the storage file with it. Reads and writes are
+     * served meanwhile, the file stays readable at any point since the former private key is kept until the file no
+     * longer depends on it and the file header records which pair it was written with. With
+     * {@link LocalStorageEncryption#VALUES} only the data key is encrypted again, values keep their ciphertext.
+     * <p>
+     * The file is rewritten from the current data, so rotation also saves changes that were not saved yet
+     */
+    public void rotateKeys() {
+        encryptionHelper.rotate();
+        if (Files.exists(getFilePath())) rewrite();
+        encryptionHelper.deleteRetiredKeys();
+    }
+
+    /**
+     * @see #rotateKeys()
+     */
+    public CompletableFuture<Void> rotateKeysAsync() {
+        return CompletableFuture.runAsync(this::rotateKeys, getExecutor());
+    }
+
+    public LocalStorageKeyType getKeyType() {
+        return keyType;
+    }
+
+    public LocalStorageEncryption getEncryption() {
+        return encryption;
     }
 
-    @SneakyThrows
+    /**
+     * With {@link LocalStorageEncryption#FILE} streams the text format through {@link EncryptedFormatHelper}, the
+     * text is encrypted frame by frame as it is written. Otherwise writes {@link EntryEncryptionHelper} records,
+     * encrypting only values written since the previous save
+     */
     @Override
-    public void save() {
-        Path dir = DirectoryHelper.createOrGetDirectory(this);
-
-        Files.write(
-                Path.of(dir.toString() + File.separatorChar + getFilename()),
-                encryptionHelper.encrypt(stringify()),
-                StandardOpenOption.WRITE,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING
-        );
+    protected void serialize(@NotNull LocalStorageSnapshot snapshot, @NotNull OutputStream outputStream) throws IOException {
+        LocalStorageMetrics.Sample sample = getMetrics().begin(this, LocalStorageMetrics.Operation.ENCRYPT);
+        if (encryption == LocalStorageEncryption.FILE) {
+            try (OutputStream encryptingStream = EncryptedFormatHelper.encrypt(outputStream, encryptionHelper)) {
+                BackupHelper.write(encryptingStream, null, snapshot);
+            }
+        } else {
+            if (entryEncryptionHelper == null) {
+                entryEncryptionHelper = EntryEncryptionHelper.generate(encryptionHelper, encryptKeys());
+            } else if (entryEncryptionHelper.getKeyId() != encryptionHelper.getKeyId()) {
+                entryEncryptionHelper.rewrap(encryptionHelper);
+            }
+            entryEncryptionHelper.write(outputStream, snapshot.getEntries());
+        }
+        sample.end(0, snapshot.getItemCount());
+    }
+
+    /**
+     * Reads any of the encrypted layouts regardless of the configured {@link LocalStorageEncryption}. Values of
+     * {@link LocalStorageEncryption#VALUES} files are decrypted on first read, frames of
+     * {@link LocalStorageEncryption#FILE} files are decrypted in parallel while parsing the text. Files of the former
+     * format, encrypted with RSA as a whole, are still read. When recovering, values are decrypted right away so
+     * that records failing authentication are skipped
+     */
+    @Override
+    void deserialize(@NotNull InputStream inputStream, @NotNull RecordSink sink) throws IOException {
+        LocalStorageMetrics.Sample sample = getMetrics().begin(this, LocalStorageMetrics.Operation.DECRYPT);
+        if (EntryEncryptionHelper.isEntryFormat(inputStream)) {
+            EntryEncryptionHelper helper = EntryEncryptionHelper.read(
+                    inputStream, entryEncryptionHelper, encryptionHelper, encryptKeys(), sink
+            );
+            if (!sink.isVerifying()) entryEncryptionHelper = helper;
+        } else if (EncryptedFormatHelper.isEncryptedFormat(inputStream)) {
+            InputStream decryptingStream = EncryptedFormatHelper.decrypt(
+                    inputStream, encryptionHelper, Runtime.getRuntime().availableProcessors(), getExecutor()
+            );
+            readLines(new BufferedReader(new InputStreamReader(decryptingStream, StandardCharsets.UTF_8)), sink);
+        } else {
+            readLines(new BufferedReader(new StringReader(encryptionHelper.decrypt(inputStream.readAllBytes()))), sink);
+        }
+        sample.end(0, 0);
+    }
+
+    @Override
+    LocalStorageEncryption headerEncryption() {
+        return encryption;
+    }
+
+    private boolean encryptKeys() {
+        return encryption == LocalStorageEncryption.KEYS_AND_VALUES;
     }
 
 
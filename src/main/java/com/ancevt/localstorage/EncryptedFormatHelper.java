@@ -0,0 +1,343 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streaming encrypted file format.
+ * <p>
+ * Layout: {@code "LSE" version(1) frameSize(4) keyId(8) wrappedKeyLength(2) wrappedKey} followed by frames of
+ * {@code flags(1) length(4) ciphertext}. A random AES-256 data key is generated for every save and stored wrapped
+ * with the public key of the RSA or X25519 key pair, {@code keyId} identifies the pair, see {@link EncryptionHelper}.
+ * Version 1 files have no {@code keyId} and are read with the current key pair. Each frame holds up to
+ * {@code frameSize} bytes of the text format encrypted with AES-GCM, the frame index is the nonce and the header and
+ * the flags are authenticated with it. Frames are therefore verified and decrypted independently, while reordered,
+ * replaced or missing frames fail verification. The last frame carries the {@code FINAL} flag, so a truncated file is
+ * detected as well.
+ * <p>
+ * Only a few frames are held in memory at any time when writing or reading, independent of the storage size.
+ */
+class EncryptedFormatHelper {
+
+    private static final byte[] MAGIC = {'L', 'S', 'E'};
+    private static final byte VERSION = 2;
+    private static final byte VERSION_WITHOUT_KEY_ID = 1;
+
+    private static final String DATA_KEY_ALGORITHM = "AES";
+    private static final int DATA_KEY_SIZE = 256;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 128;
+    private static final int NONCE_LENGTH = 12;
+
+    private static final int FRAME_SIZE = 1 << 16;
+    private static final int MAX_FRAME_SIZE = 1 << 24;
+    private static final byte FLAG_FINAL = 1;
+
+    static boolean isEncryptedFormat(@NotNull InputStream inputStream) throws IOException {
+        inputStream.mark(MAGIC.length + 1);
+        byte[] header = inputStream.readNBytes(MAGIC.length + 1);
+        inputStream.reset();
+        return header.length == MAGIC.length + 1 && Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * @return stream encrypting everything written to it, closing it writes the final frame but does not close
+     * {@code outputStream}
+     */
+    static @NotNull OutputStream encrypt(@NotNull OutputStream outputStream,
+                                         @NotNull EncryptionHelper encryptionHelper) throws IOException {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(DATA_KEY_ALGORITHM);
+            keyGenerator.init(DATA_KEY_SIZE);
+            SecretKey dataKey = keyGenerator.generateKey();
+            return new FrameOutputStream(outputStream, dataKey, encryptionHelper.wrapKey(dataKey));
+        } catch (GeneralSecurityException e) {
+            throw new LocalStorageException("Unable to create data key", e);
+        }
+    }
+
+    /**
+     * @param parallelism number of frames decrypted concurrently
+     * @param executor    decrypts frames ahead of the reader, usually the executor of the storage. The reader decrypts
+     *                    a frame itself if the executor has not started it yet, so a busy executor never blocks it
+     * @return stream of the decrypted text
+     */
+    static @NotNull InputStream decrypt(@NotNull InputStream inputStream,
+                                        @NotNull EncryptionHelper encryptionHelper,
+                                        int parallelism,
+                                        @NotNull Executor executor) throws IOException {
+        return new FrameInputStream(inputStream, encryptionHelper, parallelism, executor);
+    }
+
+    private static byte[] header(byte version, int frameSize, long keyId, byte[] wrappedKey) {
+        int keyIdLength = version == VERSION_WITHOUT_KEY_ID ? 0 : Long.BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(
+                MAGIC.length + 1 + Integer.BYTES + keyIdLength + Short.BYTES + wrappedKey.length
+        );
+        buffer.put(MAGIC).put(version).putInt(frameSize);
+        if (keyIdLength != 0) buffer.putLong(keyId);
+        return buffer.putShort((short) wrappedKey.length).put(wrappedKey).array();
+    }
+
+    private static Cipher cipher(int mode, SecretKey dataKey, long index, byte[] header, byte flags)
+            throws GeneralSecurityException {
+
+        byte[] nonce = ByteBuffer.allocate(NONCE_LENGTH).putLong(NONCE_LENGTH - Long.BYTES, index).array();
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(mode, dataKey, new GCMParameterSpec(TAG_LENGTH, nonce));
+        cipher.updateAAD(header);
+        cipher.updateAAD(new byte[]{flags});
+        return cipher;
+    }
+
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream outputStream;
+        private final SecretKey dataKey;
+        private final byte[] header;
+        private final byte[] frame = new byte[FRAME_SIZE];
+        private int position;
+        private long index;
+        private boolean closed;
+
+        private FrameOutputStream(OutputStream outputStream, SecretKey dataKey, EncryptionHelper.WrappedKey wrappedKey)
+                throws IOException {
+
+            this.outputStream = new DataOutputStream(outputStream);
+            this.dataKey = dataKey;
+            this.header = header(VERSION, FRAME_SIZE, wrappedKey.keyId(), wrappedKey.bytes());
+            this.outputStream.write(header);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (position == frame.length) writeFrame((byte) 0);
+            frame[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte @NotNull [] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (position == frame.length) writeFrame((byte) 0);
+                int count = Math.min(length, frame.length - position);
+                System.arraycopy(bytes, offset, frame, position, count);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            writeFrame(FLAG_FINAL);
+            outputStream.flush();
+        }
+
+        private void writeFrame(byte flags) throws IOException {
+            byte[] ciphertext;
+            try {
+                ciphertext = cipher(Cipher.ENCRYPT_MODE, dataKey, index++, header, flags).doFinal(frame, 0, position);
+            } catch (GeneralSecurityException e) {
+                throw new LocalStorageException("Unable to encrypt local storage", e);
+            }
+            outputStream.write(flags);
+            outputStream.writeInt(ciphertext.length);
+            outputStream.write(ciphertext);
+            position = 0;
+        }
+    }
+
+    private static final class FrameInputStream extends InputStream {
+
+        private final DataInputStream inputStream;
+        private final SecretKey dataKey;
+        private final byte[] header;
+        private final int parallelism;
+        private final Executor executor;
+        private final int maxCiphertextLength;
+        private final Deque<FrameTask> frames = new ArrayDeque<>();
+        private long index;
+        private boolean finalFrameRead;
+        private byte[] frame = new byte[0];
+        private int position;
+
+        private FrameInputStream(InputStream inputStream,
+                                 EncryptionHelper encryptionHelper,
+                                 int parallelism,
+                                 Executor executor) throws IOException {
+
+            this.inputStream = new DataInputStream(inputStream);
+            this.parallelism = Math.max(parallelism, 1);
+            this.executor = executor;
+
+            byte[] magic = this.inputStream.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) throw new LocalStorageException("Not an encrypted local storage file");
+            try {
+                byte version = this.inputStream.readByte();
+                if (version != VERSION && version != VERSION_WITHOUT_KEY_ID) {
+                    throw new LocalStorageException("Unsupported encrypted storage version " + version);
+                }
+                int frameSize = this.inputStream.readInt();
+                if (frameSize <= 0 || frameSize > MAX_FRAME_SIZE) {
+                    throw new LocalStorageException("Invalid frame size %d of the encrypted local storage".formatted(frameSize));
+                }
+                this.maxCiphertextLength = frameSize + TAG_LENGTH / Byte.SIZE;
+                long keyId = version == VERSION_WITHOUT_KEY_ID ? 0 : this.inputStream.readLong();
+                byte[] wrappedKey = new byte[this.inputStream.readUnsignedShort()];
+                this.inputStream.readFully(wrappedKey);
+
+                this.header = header(version, frameSize, keyId, wrappedKey);
+                this.dataKey = version == VERSION_WITHOUT_KEY_ID
+                        ? encryptionHelper.unwrapKey(wrappedKey, DATA_KEY_ALGORITHM)
+                        : encryptionHelper.unwrapKey(wrappedKey, keyId, DATA_KEY_ALGORITHM);
+            } catch (EOFException e) {
+                throw new LocalStorageException("Encrypted local storage file is truncated", e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == frame.length && !nextFrame()) return -1;
+            return frame[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte @NotNull [] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (position == frame.length && !nextFrame()) return -1;
+            int count = Math.min(length, frame.length - position);
+            System.arraycopy(frame, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        private boolean nextFrame() throws IOException {
+            do {
+                while (frames.size() < parallelism && !finalFrameRead) {
+                    frames.add(readFrame());
+                }
+                if (frames.isEmpty()) return false;
+
+                try {
+                    frame = frames.poll().join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+                    throw e;
+                }
+                position = 0;
+            } while (frame.length == 0);
+            return true;
+        }
+
+        /**
+         * Reads the next frame and starts decrypting it, in parallel with other frames if allowed
+         */
+        private FrameTask readFrame() throws IOException {
+            byte flags;
+            byte[] ciphertext;
+            try {
+                flags = inputStream.readByte();
+                int length = inputStream.readInt();
+                if (length < 0 || length > maxCiphertextLength) {
+                    throw new LocalStorageException("Invalid length %d of encrypted local storage frame %d"
+                            .formatted(length, index));
+                }
+                ciphertext = new byte[length];
+                inputStream.readFully(ciphertext);
+            } catch (EOFException e) {
+                throw new LocalStorageException("Encrypted local storage file is truncated", e);
+            }
+
+            finalFrameRead = (flags & FLAG_FINAL) != 0;
+            if (finalFrameRead && inputStream.read() != -1) {
+                throw new LocalStorageException("Unexpected data after the last frame of the encrypted local storage");
+            }
+
+            FrameTask task = new FrameTask(index++, flags, ciphertext);
+            if (parallelism > 1) executor.execute(task);
+            return task;
+        }
+
+        private byte[] decrypt(long frameIndex, byte flags, byte[] ciphertext) {
+            try {
+                return cipher(Cipher.DECRYPT_MODE, dataKey, frameIndex, header, flags).doFinal(ciphertext);
+            } catch (AEADBadTagException e) {
+                throw new LocalStorageException("Encrypted local storage frame %d is corrupted".formatted(frameIndex), e);
+            } catch (GeneralSecurityException e) {
+                throw new LocalStorageException("Unable to decrypt local storage", e);
+            }
+        }
+
+        /**
+         * Decryption of one frame, run either by the executor or by the reader, whichever comes first
+         */
+        private final class FrameTask implements Runnable {
+
+            private final long frameIndex;
+            private final byte flags;
+            private final byte[] ciphertext;
+            private final AtomicBoolean started = new AtomicBoolean();
+            private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+            private FrameTask(long frameIndex, byte flags, byte[] ciphertext) {
+                this.frameIndex = frameIndex;
+                this.flags = flags;
+                this.ciphertext = ciphertext;
+            }
+
+            @Override
+            public void run() {
+                if (!started.compareAndSet(false, true)) return;
+                try {
+                    result.complete(decrypt(frameIndex, flags, ciphertext));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            private byte[] join() {
+                run();
+                return result.join();
+            }
+        }
+    }
+}
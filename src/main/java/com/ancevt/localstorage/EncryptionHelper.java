@@ -23,163 +23,480 @@ import org.jetbrains.annotations.NotNull;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import java.io.File;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.spec.EncodedKeySpec;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPublicKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
+/**
+ * Key pair of an encrypted storage, kept in {@code <file>.rsa} and {@code <file>.rsa.pub}, or {@code <file>.x25519}
+ * and {@code <file>.x25519.pub}, see {@link LocalStorageKeyType}.
+ * <p>
+ * Every pair has an id, the first 8 bytes of the SHA-256 of its public key, which file headers record. When the pair is
+ * rotated the former private key is kept as {@code <file>.rsa.<id>} until no file depends on it, so files written
+ * with either pair stay readable during the rotation. A new pair is written as {@code <file>.rsa.new} and
+ * {@code <file>.rsa.pub.new} first and then moved in place, a pair left half moved by a crash is completed when the
+ * keys are read. Key files are never deleted because they fail to work, data encrypted with them would be lost.
+ * <p>
+ * {@link #prewarm(Executor)} reads or generates the pair in the background, the first use waits for it only if it has
+ * not finished yet.
+ */
 class EncryptionHelper {
 
-    private static final int KEY_SIZE = 2048;
-    private static final String ALGORITHM = "RSA";
-    private static final int MAX_STACK_OVERFLOW_SAFE_ATTEMPTS = 2;
+    private static final int RSA_KEY_SIZE = 2048;
+    private static final String RSA_TRANSFORMATION = "RSA";
+    private static final String RSA_KEY_WRAP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final String AES_KEY_WRAP_TRANSFORMATION = "AESWrap";
+    private static final String KDF_ALGORITHM = "HmacSHA256";
 
-    private static int stackOverflowSafeAttempts = MAX_STACK_OVERFLOW_SAFE_ATTEMPTS;
+    private final ReentrantLock lock = new ReentrantLock();
 
-    private Path publicKeyPath;
-    private Path privateKeyPath;
+    private final Path filePath;
+    private final LocalStorageKeyType keyType;
 
-    private PrivateKey privateKey;
-    private PublicKey publicKey;
+    private volatile Keys keys;
+    private final Map<Long, Keys> retiredKeys = new ConcurrentHashMap<>();
 
-    private final EncryptedFileLocalStorage encryptedFileLocalStorage;
+    /**
+     * Key pair generated in the background before it is needed, it is written to files on first use
+     */
+    private volatile CompletableFuture<KeyPair> pendingKeyPair;
 
     public EncryptionHelper(EncryptedFileLocalStorage encryptedFileLocalStorage) {
+        filePath = encryptedFileLocalStorage.getFilePath();
+        keyType = encryptedFileLocalStorage.getKeyType();
+    }
 
-        this.encryptedFileLocalStorage = encryptedFileLocalStorage;
+    /**
+     * Starts reading the key pair or generating a new one in the background. Nothing is written to files
+     */
+    public void prewarm(@NotNull Executor executor) {
+        if (keyPairExists()) {
+            CompletableFuture.runAsync(this::preloadKeys, executor);
+        } else {
+            pendingKeyPair = CompletableFuture.supplyAsync(() -> generateKeyPair(keyType), executor);
+        }
     }
 
     @SneakyThrows
-    private void generateKeyPairIfNotExists() {
-        Path dir = DirectoryHelper.createOrGetDirectory(encryptedFileLocalStorage);
+    public void deleteKeys() {
+        lock.lock();
+        try {
+            for (LocalStorageKeyType type : LocalStorageKeyType.values()) {
+                Files.deleteIfExists(getPublicKeyPath(type));
+                Files.deleteIfExists(getPrivateKeyPath(type));
+                Files.deleteIfExists(getNewKeyPath(getPublicKeyPath(type)));
+                Files.deleteIfExists(getNewKeyPath(getPrivateKeyPath(type)));
+            }
+            deleteRetiredKeys();
+            keys = null;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        privateKeyPath = Path.of(dir.toString() + File.separatorChar + encryptedFileLocalStorage.getFilename() + ".rsa");
-        publicKeyPath = Path.of(dir.toString() + File.separatorChar + encryptedFileLocalStorage.getFilename() + ".rsa.pub");
+    public boolean keyPairExists() {
+        for (LocalStorageKeyType type : LocalStorageKeyType.values()) {
+            Path privateKeyPath = getPrivateKeyPath(type);
+            if (Files.exists(privateKeyPath) || Files.exists(getNewKeyPath(privateKeyPath))) return true;
+        }
+        return false;
+    }
 
-        if (!Files.exists(privateKeyPath) || !Files.exists(publicKeyPath)) {
-            KeyPairGenerator generator = KeyPairGenerator.getInstance(ALGORITHM);
-            generator.initialize(KEY_SIZE);
-            KeyPair pair = generator.generateKeyPair();
+    /**
+     * @return id of the current key pair, generated if there is none
+     */
+    public long getKeyId() {
+        return keys().id();
+    }
 
-            privateKey = pair.getPrivate();
-            publicKey = pair.getPublic();
+    /**
+     * Encrypts a data key with the public key of the current pair
+     */
+    @SneakyThrows
+    public @NotNull WrappedKey wrapKey(@NotNull SecretKey key) {
+        Keys keys = keys();
+        byte[] bytes = switch (keys.type()) {
+            case RSA -> {
+                Cipher cipher = Cipher.getInstance(RSA_KEY_WRAP_TRANSFORMATION);
+                cipher.init(Cipher.WRAP_MODE, keys.publicKey());
+                yield cipher.wrap(key);
+            }
+            case X25519 -> {
+                KeyPair ephemeral = generateKeyPair(LocalStorageKeyType.X25519);
+                byte[] ephemeralKey = ephemeral.getPublic().getEncoded();
+                Cipher cipher = Cipher.getInstance(AES_KEY_WRAP_TRANSFORMATION);
+                cipher.init(Cipher.WRAP_MODE, agree(ephemeral.getPrivate(), keys.publicKey(), ephemeralKey));
+                byte[] wrapped = cipher.wrap(key);
+                yield ByteBuffer.allocate(Short.BYTES + ephemeralKey.length + wrapped.length)
+                        .putShort((short) ephemeralKey.length)
+                        .put(ephemeralKey)
+                        .put(wrapped)
+                        .array();
+            }
+        };
+        return new WrappedKey(keys.id(), bytes);
+    }
 
-            Files.write(privateKeyPath, privateKey.getEncoded(), CREATE, WRITE, TRUNCATE_EXISTING);
-            Files.write(publicKeyPath, publicKey.getEncoded(), CREATE, WRITE, TRUNCATE_EXISTING);
+    /**
+     * @param keyId id of the key pair the data key was wrapped with, the current or a retired one
+     * @throws LocalStorageException if the key pair is missing or the key was not wrapped with it
+     */
+    @SneakyThrows
+    public @NotNull SecretKey unwrapKey(byte[] wrappedKey, long keyId, @NotNull String algorithm) {
+        Keys keys = getKeys(keyId);
+        try {
+            return switch (keys.type()) {
+                case RSA -> {
+                    Cipher cipher = Cipher.getInstance(RSA_KEY_WRAP_TRANSFORMATION);
+                    cipher.init(Cipher.UNWRAP_MODE, keys.privateKey());
+                    yield (SecretKey) cipher.unwrap(wrappedKey, algorithm, Cipher.SECRET_KEY);
+                }
+                case X25519 -> {
+                    ByteBuffer buffer = ByteBuffer.wrap(wrappedKey);
+                    byte[] ephemeralKey = new byte[Short.toUnsignedInt(buffer.getShort())];
+                    buffer.get(ephemeralKey);
+                    PublicKey ephemeralPublicKey = KeyFactory.getInstance(LocalStorageKeyType.X25519.algorithm)
+                            .generatePublic(new X509EncodedKeySpec(ephemeralKey));
+
+                    Cipher cipher = Cipher.getInstance(AES_KEY_WRAP_TRANSFORMATION);
+                    cipher.init(Cipher.UNWRAP_MODE, agree(keys.privateKey(), ephemeralPublicKey, ephemeralKey));
+                    yield (SecretKey) cipher.unwrap(
+                            Arrays.copyOfRange(wrappedKey, buffer.position(), wrappedKey.length), algorithm, Cipher.SECRET_KEY
+                    );
+                }
+            };
+        } catch (InvalidKeyException e) {
+            throw new LocalStorageException("Unable to decrypt the data key, the key pair does not match", e);
         }
     }
 
-    @SneakyThrows
-    public void deleteKeys() {
-        Files.deleteIfExists(publicKeyPath);
-        Files.deleteIfExists(privateKeyPath);
+    /**
+     * Unwraps a data key of a file that does not record its key pair, it is assumed to be the current one
+     */
+    public @NotNull SecretKey unwrapKey(byte[] wrappedKey, @NotNull String algorithm) {
+        return unwrapKey(wrappedKey, getKeyId(), algorithm);
     }
 
+    /**
+     * Generates a new current key pair of the configured type. The former private key is kept as a retired key until
+     * {@link #deleteRetiredKeys()}
+     *
+     * @return id of the new key pair
+     */
     @SneakyThrows
-    public boolean keyPairExists() {
-        Path dir = DirectoryHelper.createOrGetDirectory(encryptedFileLocalStorage);
-
-        privateKeyPath = Path.of(dir.toString() + File.separatorChar + encryptedFileLocalStorage.getFilename() + ".rsa");
-        publicKeyPath = Path.of(dir.toString() + File.separatorChar + encryptedFileLocalStorage.getFilename() + ".rsa.pub");
+    public long rotate() {
+        lock.lock();
+        try {
+            Keys former = keys();
+            writeKeyFile(getRetiredKeyPath(former.type(), former.id()), former.privateKey().getEncoded());
+            retiredKeys.put(former.id(), former);
+
+            keys = generateKeys();
+            return keys.id();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        return Files.exists(privateKeyPath) && Files.exists(publicKeyPath);
+    /**
+     * Deletes private keys of former key pairs, call once no file is encrypted with them anymore
+     */
+    @SneakyThrows
+    public void deleteRetiredKeys() {
+        lock.lock();
+        try {
+            Path directory = filePath.getParent();
+            if (Files.isDirectory(directory)) {
+                for (LocalStorageKeyType type : LocalStorageKeyType.values()) {
+                    String glob = getPrivateKeyPath(type).getFileName() + ".[0-9a-f]*";
+                    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, glob)) {
+                        for (Path path : paths) {
+                            Files.deleteIfExists(path);
+                        }
+                    }
+                    // the pair of another type is only left over after a rotation to the configured type
+                    Keys keys = this.keys;
+                    if (keys != null && keys.type() != type) {
+                        Files.deleteIfExists(getPrivateKeyPath(type));
+                        Files.deleteIfExists(getPublicKeyPath(type));
+                    }
+                }
+            }
+            retiredKeys.clear();
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Decrypts files written before {@link EncryptedFormatHelper}, whose whole content was encrypted with RSA
+     *
+     * @throws LocalStorageException if the file was not encrypted with the current key pair, the keys are kept
+     */
     @SneakyThrows
-    public byte[] encrypt(String string) {
-        generateKeyPairIfNotExists();
-        if (publicKey == null) {
-            KeyFactory keyFactory = KeyFactory.getInstance(ALGORITHM);
-            byte[] publicKeyBytes = Files.readAllBytes(publicKeyPath);
-            EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKeyBytes);
-            publicKey = keyFactory.generatePublic(publicKeySpec);
+    public @NotNull String decrypt(byte[] bytes) {
+        Cipher decryptCipher = Cipher.getInstance(RSA_TRANSFORMATION);
+        decryptCipher.init(Cipher.DECRYPT_MODE, getRsaKeys().privateKey());
+        try {
+            return new String(decryptCipher.doFinal(bytes), StandardCharsets.UTF_8);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new LocalStorageException("Unable to decrypt local storage, the key pair does not match", e);
         }
+    }
 
-        Cipher encryptCipher = Cipher.getInstance(ALGORITHM);
+    static long getKeyId(@NotNull PublicKey publicKey) {
         try {
-            encryptCipher.init(Cipher.ENCRYPT_MODE, publicKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-            System.err.println("Public key is invalid. Attempting to regenerate key pair");
-            repairKeyPair();
-            return encrypt(string);
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded())).getLong();
+        } catch (GeneralSecurityException e) {
+            throw new LocalStorageException("Unable to compute key id", e);
         }
+    }
 
-        byte[] stringBytes = string.getBytes(StandardCharsets.UTF_8);
-        byte[] result;
+    private Keys keys() {
+        Keys keys = this.keys;
+        if (keys != null) return keys;
+
+        lock.lock();
         try {
-            result = encryptCipher.doFinal(stringBytes);
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
-            e.printStackTrace();
-            System.err.println("Public key is invalid. Attempting to regenerate key pair");
-            repairKeyPair();
-            return encrypt(string);
+            if (this.keys == null) this.keys = loadKeys();
+            return this.keys;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        stackOverflowSafeAttempts = MAX_STACK_OVERFLOW_SAFE_ATTEMPTS;
+    /**
+     * Reads the existing key pair unless it has been read already or deleted meanwhile, failures are reported on
+     * first use
+     */
+    private void preloadKeys() {
+        lock.lock();
+        try {
+            if (keys == null && keyPairExists()) keys = loadKeys();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        return result;
+    private Keys getRsaKeys() {
+        Keys keys = keys();
+        if (keys.type() != LocalStorageKeyType.RSA) {
+            throw new LocalStorageException("The former encrypted format requires an RSA key pair");
+        }
+        return keys;
     }
 
+    private Keys getKeys(long keyId) {
+        Keys keys = keys();
+        if (keys.id() == keyId) return keys;
+
+        return retiredKeys.computeIfAbsent(keyId, id -> {
+            for (LocalStorageKeyType type : LocalStorageKeyType.values()) {
+                Path path = getRetiredKeyPath(type, id);
+                if (Files.exists(path)) return new Keys(type, id, null, readPrivateKey(type, path));
+            }
+            throw new LocalStorageException("Key pair %016x the data is encrypted with is missing".formatted(id));
+        });
+    }
+
+    /**
+     * Reads the current key pair, preferring the configured type. A missing RSA public key or one that does not
+     * belong to the private key is restored from the private key. A new pair is generated only if there is no private
+     * key of any type
+     */
     @SneakyThrows
-    public @NotNull String decrypt(byte[] bytes) {
-        generateKeyPairIfNotExists();
-        if (privateKey == null) {
-            KeyFactory keyFactory = KeyFactory.getInstance(ALGORITHM);
-            byte[] privateKeyBytes = Files.readAllBytes(privateKeyPath);
-            EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(privateKeyBytes);
-            privateKey = keyFactory.generatePrivate(privateKeySpec);
+    private Keys loadKeys() {
+        for (LocalStorageKeyType existing : LocalStorageKeyType.values()) {
+            completeKeyWrite(existing);
         }
 
-        Cipher decryptCipher = Cipher.getInstance(ALGORITHM);
-        try {
-            decryptCipher.init(Cipher.DECRYPT_MODE, privateKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-            System.err.println("Private key is invalid. Attempting to regenerate key pair");
-            repairKeyPair();
-            return decrypt(bytes);
+        LocalStorageKeyType type = keyType;
+        if (!Files.exists(getPrivateKeyPath(type))) {
+            type = null;
+            for (LocalStorageKeyType existing : LocalStorageKeyType.values()) {
+                if (Files.exists(getPrivateKeyPath(existing))) type = existing;
+            }
+            if (type == null) return generateKeys();
         }
 
-        byte[] decryptedMessageBytes;
-        try {
-            decryptedMessageBytes = decryptCipher.doFinal(bytes);
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
-            e.printStackTrace();
-            System.err.println("Private key is invalid. Attempting to regenerate key pair");
-            repairKeyPair();
-            return decrypt(bytes);
+        PrivateKey privateKey = readPrivateKey(type, getPrivateKeyPath(type));
+        KeyFactory keyFactory = KeyFactory.getInstance(type.algorithm);
+        Path publicKeyPath = getPublicKeyPath(type);
+        PublicKey publicKey = Files.exists(publicKeyPath)
+                ? keyFactory.generatePublic(new X509EncodedKeySpec(Files.readAllBytes(publicKeyPath)))
+                : null;
+        if (publicKey == null || !matches(publicKey, privateKey)) {
+            if (!(privateKey instanceof RSAPrivateCrtKey crtKey)) {
+                throw new LocalStorageException("Public key " + publicKeyPath
+                        + (publicKey == null ? " is missing" : " does not belong to the private key"));
+            }
+            publicKey = keyFactory.generatePublic(
+                    new RSAPublicKeySpec(crtKey.getModulus(), crtKey.getPublicExponent())
+            );
+            writeKeyFile(publicKeyPath, publicKey.getEncoded());
         }
+        return new Keys(type, getKeyId(publicKey), publicKey, privateKey);
+    }
+
+    @SneakyThrows
+    private Keys generateKeys() {
+        CompletableFuture<KeyPair> pendingKeyPair = this.pendingKeyPair;
+        this.pendingKeyPair = null;
+        KeyPair pair = pendingKeyPair != null ? pendingKeyPair.join() : generateKeyPair(keyType);
+
+        Files.createDirectories(filePath.getParent());
+        writeKeys(keyType, pair);
+        return new Keys(keyType, getKeyId(pair.getPublic()), pair.getPublic(), pair.getPrivate());
+    }
 
-        stackOverflowSafeAttempts = MAX_STACK_OVERFLOW_SAFE_ATTEMPTS;
+    private Path getPrivateKeyPath(LocalStorageKeyType type) {
+        return filePath.resolveSibling(filePath.getFileName() + "." + type.extension);
+    }
 
-        return new String(decryptedMessageBytes, StandardCharsets.UTF_8);
+    private Path getPublicKeyPath(LocalStorageKeyType type) {
+        return filePath.resolveSibling(filePath.getFileName() + "." + type.extension + ".pub");
+    }
+
+    private Path getRetiredKeyPath(LocalStorageKeyType type, long keyId) {
+        return filePath.resolveSibling(filePath.getFileName() + "." + type.extension + "." + HexFormat.of().toHexDigits(keyId));
     }
 
     @SneakyThrows
-    private void repairKeyPair() {
-        Files.deleteIfExists(publicKeyPath);
-        Files.deleteIfExists(privateKeyPath);
+    private static KeyPair generateKeyPair(LocalStorageKeyType type) {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(type.algorithm);
+        if (type == LocalStorageKeyType.RSA) generator.initialize(RSA_KEY_SIZE);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @return AES key derived from the X25519 shared secret, bound to the ephemeral public key
+     */
+    private static SecretKey agree(PrivateKey privateKey, PublicKey publicKey, byte[] ephemeralKey)
+            throws GeneralSecurityException {
+
+        KeyAgreement keyAgreement = KeyAgreement.getInstance(LocalStorageKeyType.X25519.algorithm);
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(publicKey, true);
+
+        Mac mac = Mac.getInstance(KDF_ALGORITHM);
+        mac.init(new SecretKeySpec(keyAgreement.generateSecret(), KDF_ALGORITHM));
+        return new SecretKeySpec(mac.doFinal(ephemeralKey), "AES");
+    }
+
+    private static PrivateKey readPrivateKey(LocalStorageKeyType type, Path path) {
+        try {
+            return KeyFactory.getInstance(type.algorithm).generatePrivate(new PKCS8EncodedKeySpec(Files.readAllBytes(path)));
+        } catch (IOException | GeneralSecurityException e) {
+            throw new LocalStorageException("Unable to read private key " + path, e);
+        }
+    }
+
+    /**
+     * Writes the pair under new names and moves it in place, the private key last
+     */
+    private void writeKeys(LocalStorageKeyType type, KeyPair pair) throws IOException {
+        writeKeyFile(getNewKeyPath(getPublicKeyPath(type)), pair.getPublic().getEncoded());
+        writeKeyFile(getNewKeyPath(getPrivateKeyPath(type)), pair.getPrivate().getEncoded());
+        completeKeyWrite(type);
+    }
+
+    /**
+     * Moves a completely written new pair in place, the new private key is written after the new public key, so its
+     * presence marks a complete pair. A new public key alone is discarded
+     */
+    private void completeKeyWrite(LocalStorageKeyType type) throws IOException {
+        Path newPublicKeyPath = getNewKeyPath(getPublicKeyPath(type));
+        Path newPrivateKeyPath = getNewKeyPath(getPrivateKeyPath(type));
+        if (Files.exists(newPrivateKeyPath)) {
+            if (Files.exists(newPublicKeyPath)) moveKeyFile(newPublicKeyPath, getPublicKeyPath(type));
+            moveKeyFile(newPrivateKeyPath, getPrivateKeyPath(type));
+        } else {
+            Files.deleteIfExists(newPublicKeyPath);
+        }
+    }
+
+    private static Path getNewKeyPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".new");
+    }
 
-        generateKeyPairIfNotExists();
+    /**
+     * @return whether the keys belong to one pair, RSA private keys without CRT parameters are not checked
+     */
+    private static boolean matches(PublicKey publicKey, PrivateKey privateKey) throws GeneralSecurityException {
+        if (publicKey instanceof RSAPublicKey rsaPublicKey) {
+            return !(privateKey instanceof RSAPrivateCrtKey crtKey)
+                    || rsaPublicKey.getModulus().equals(crtKey.getModulus())
+                    && rsaPublicKey.getPublicExponent().equals(crtKey.getPublicExponent());
+        }
+
+        // agreements with an ephemeral pair give the same secret on both sides only if the keys belong together
+        KeyPair ephemeral = generateKeyPair(LocalStorageKeyType.X25519);
+        KeyAgreement ours = KeyAgreement.getInstance(LocalStorageKeyType.X25519.algorithm);
+        ours.init(privateKey);
+        ours.doPhase(ephemeral.getPublic(), true);
+        KeyAgreement theirs = KeyAgreement.getInstance(LocalStorageKeyType.X25519.algorithm);
+        theirs.init(ephemeral.getPrivate());
+        theirs.doPhase(publicKey, true);
+        return MessageDigest.isEqual(ours.generateSecret(), theirs.generateSecret());
+    }
+
+    private static void writeKeyFile(Path path, byte[] bytes) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tempPath, bytes, CREATE, WRITE, TRUNCATE_EXISTING);
+        moveKeyFile(tempPath, path);
+    }
 
-        stackOverflowSafeAttempts--;
-        if (stackOverflowSafeAttempts <= 0) {
-            stackOverflowSafeAttempts = MAX_STACK_OVERFLOW_SAFE_ATTEMPTS;
-            throw new LocalStorageException("Attempts to regenerate keys have been exhausted");
+    private static void moveKeyFile(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, REPLACE_EXISTING);
         }
     }
+
+    /**
+     * @param publicKey {@code null} for retired pairs, only their private key is kept
+     */
+    private record Keys(LocalStorageKeyType type, long id, PublicKey publicKey, PrivateKey privateKey) {
+    }
+
+    /**
+     * @param keyId id of the key pair the key is wrapped with
+     */
+    record WrappedKey(long keyId, byte[] bytes) {
+    }
 }
@@ -0,0 +1,345 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import lombok.SneakyThrows;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encrypted file format with every entry encrypted on its own, see {@link LocalStorageEncryption#VALUES}.
+ * <p>
+ * Layout: {@code "LSV" version(1) flags(1) keyId(8) wrappedKeyLength(2) wrappedKey} followed by records of
+ * {@code keyLength(4) key valueLength(4) value}. The AES-256 data key is stored wrapped with the public key of the
+ * key pair and kept for the life of the storage, so values keep their ciphertext across saves and only written values
+ * are encrypted again. When the key pair is rotated only the data key is wrapped again, {@code keyId} identifies the
+ * pair, version 1 files have none. A value is {@code nonce(12)} followed by {@code type(1) value} encrypted with
+ * AES-GCM, the key is authenticated with it, so a value cannot be moved to another key. With the {@code KEYS} flag a
+ * key is stored as {@code iv(16) ciphertext}, encrypted with AES-CTR under a synthetic IV, the HMAC of the key, which
+ * is verified on decryption.
+ * <p>
+ * Records are not authenticated as a whole, removing a record or restoring an older record of a key is not detected.
+ */
+final class EntryEncryptionHelper {
+
+    private static final byte[] MAGIC = {'L', 'S', 'V'};
+    private static final byte VERSION = 2;
+    private static final byte VERSION_WITHOUT_KEY_ID = 1;
+    private static final byte FLAG_KEYS = 1;
+
+    private static final String DATA_KEY_ALGORITHM = "AES";
+    private static final int DATA_KEY_SIZE = 256;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String VALUE_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_TRANSFORMATION = "AES/CTR/NoPadding";
+    private static final int TAG_LENGTH = 128;
+    private static final int NONCE_LENGTH = 12;
+    private static final int IV_LENGTH = 16;
+    private static final int MAX_RECORD_LENGTH = 1 << 30;
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_BYTES = 1;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> VALUE_CIPHER = ThreadLocal.withInitial(() -> cipher(VALUE_TRANSFORMATION));
+    private static final ThreadLocal<Cipher> KEY_CIPHER = ThreadLocal.withInitial(() -> cipher(KEY_TRANSFORMATION));
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(EntryEncryptionHelper::mac);
+
+    private final SecretKey dataKey;
+    private volatile EncryptionHelper.WrappedKey wrappedKey;
+    private final SecretKey valueKey;
+    private final SecretKey keyKey;
+    private final SecretKey macKey;
+    private final boolean encryptKeys;
+
+    private EntryEncryptionHelper(@NotNull EncryptionHelper.WrappedKey wrappedKey,
+                                  @NotNull SecretKey dataKey,
+                                  boolean encryptKeys) {
+        this.wrappedKey = wrappedKey;
+        this.dataKey = dataKey;
+        this.encryptKeys = encryptKeys;
+        valueKey = deriveKey(dataKey, "value", DATA_KEY_ALGORITHM);
+        keyKey = deriveKey(dataKey, "key", DATA_KEY_ALGORITHM);
+        macKey = deriveKey(dataKey, "key-iv", MAC_ALGORITHM);
+    }
+
+    /**
+     * @return helper with a new data key wrapped by the key pair of the storage
+     */
+    @SneakyThrows
+    static @NotNull EntryEncryptionHelper generate(@NotNull EncryptionHelper encryptionHelper, boolean encryptKeys) {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(DATA_KEY_ALGORITHM);
+        keyGenerator.init(DATA_KEY_SIZE);
+        SecretKey dataKey = keyGenerator.generateKey();
+        return new EntryEncryptionHelper(encryptionHelper.wrapKey(dataKey), dataKey, encryptKeys);
+    }
+
+    /**
+     * @return id of the key pair the data key is wrapped with
+     */
+    long getKeyId() {
+        return wrappedKey.keyId();
+    }
+
+    /**
+     * Wraps the data key with the current key pair, encrypted values stay valid
+     */
+    void rewrap(@NotNull EncryptionHelper encryptionHelper) {
+        wrappedKey = encryptionHelper.wrapKey(dataKey);
+    }
+
+    static boolean isEntryFormat(@NotNull InputStream inputStream) throws IOException {
+        inputStream.mark(MAGIC.length + 1);
+        byte[] header = inputStream.readNBytes(MAGIC.length + 1);
+        inputStream.reset();
+        return header.length == MAGIC.length + 1 && Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Reads the records without decrypting values, each value is passed to the sink as a {@link SealedValue}
+     *
+     * @param current helper of the previous load or save, reused if the file has the same data key
+     * @return helper holding the data key of the file
+     */
+    static @NotNull EntryEncryptionHelper read(@NotNull InputStream inputStream,
+                                               EntryEncryptionHelper current,
+                                               @NotNull EncryptionHelper encryptionHelper,
+                                               boolean encryptKeys,
+                                               @NotNull RecordSink sink) throws IOException {
+
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        try {
+            byte[] magic = dataInputStream.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC)) throw new LocalStorageException("Not an encrypted local storage file");
+            byte version = dataInputStream.readByte();
+            if (version != VERSION && version != VERSION_WITHOUT_KEY_ID) {
+                throw new LocalStorageException("Unsupported encrypted storage version " + version);
+            }
+            byte flags = dataInputStream.readByte();
+            long keyId = version == VERSION_WITHOUT_KEY_ID ? encryptionHelper.getKeyId() : dataInputStream.readLong();
+            byte[] wrappedKey = new byte[dataInputStream.readUnsignedShort()];
+            dataInputStream.readFully(wrappedKey);
+
+            EntryEncryptionHelper helper;
+            EncryptionHelper.WrappedKey currentKey = current != null ? current.wrappedKey : null;
+            if (currentKey != null && currentKey.keyId() == keyId && Arrays.equals(currentKey.bytes(), wrappedKey)) {
+                helper = current;
+            } else {
+                SecretKey dataKey = encryptionHelper.unwrapKey(wrappedKey, keyId, DATA_KEY_ALGORITHM);
+                helper = new EntryEncryptionHelper(new EncryptionHelper.WrappedKey(keyId, wrappedKey), dataKey, encryptKeys);
+            }
+
+            boolean keysEncrypted = (flags & FLAG_KEYS) != 0;
+            for (int firstByte = dataInputStream.read(); firstByte != -1; firstByte = dataInputStream.read()) {
+                byte[] keyBytes = readBytes(dataInputStream, firstByte);
+                byte[] sealedValue = readBytes(dataInputStream, dataInputStream.read());
+
+                try {
+                    String key = keysEncrypted ? helper.openKey(keyBytes) : new String(keyBytes, StandardCharsets.UTF_8);
+                    SealedValue value = new SealedValue(helper, key, keysEncrypted ? keyBytes : null, sealedValue, null);
+                    if (sink.isRecovering()) value.open();
+                    sink.accept(key, value);
+                } catch (LocalStorageException e) {
+                    sink.problem("Damaged encrypted record", e);
+                }
+            }
+            return helper;
+        } catch (EOFException e) {
+            throw new LocalStorageException("Encrypted local storage file is truncated", e);
+        }
+    }
+
+    /**
+     * Writes all entries, values already encrypted with this data key are written as they are
+     */
+    void write(@NotNull OutputStream outputStream, @NotNull PersistentTreeMap<Object> entries) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.write(MAGIC);
+        EncryptionHelper.WrappedKey wrappedKey = this.wrappedKey;
+        dataOutputStream.write(VERSION);
+        dataOutputStream.write(encryptKeys ? FLAG_KEYS : 0);
+        dataOutputStream.writeLong(wrappedKey.keyId());
+        dataOutputStream.writeShort(wrappedKey.bytes().length);
+        dataOutputStream.write(wrappedKey.bytes());
+
+        for (Map.Entry<String, Object> entry : entries) {
+            // entries of the tree are its nodes
+            SealedValue sealed = seal((PersistentTreeMap.Node<Object>) entry);
+            writeBytes(dataOutputStream, encryptKeys ? sealedKey(sealed) : entry.getKey().getBytes(StandardCharsets.UTF_8));
+            writeBytes(dataOutputStream, sealed.sealedValue);
+        }
+        dataOutputStream.flush();
+    }
+
+    /**
+     * @throws LocalStorageException if the value fails authentication
+     */
+    @NotNull Object openValue(@NotNull String key, byte @NotNull [] sealedValue) {
+        if (sealedValue.length < NONCE_LENGTH + TAG_LENGTH / 8) {
+            throw new LocalStorageException("Encrypted value of key " + key + " is truncated");
+        }
+        byte[] plaintext;
+        try {
+            Cipher cipher = VALUE_CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, valueKey, new GCMParameterSpec(TAG_LENGTH, sealedValue, 0, NONCE_LENGTH));
+            cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+            plaintext = cipher.doFinal(sealedValue, NONCE_LENGTH, sealedValue.length - NONCE_LENGTH);
+        } catch (AEADBadTagException e) {
+            throw new LocalStorageException("Encrypted value of key " + key + " is corrupted", e);
+        } catch (GeneralSecurityException e) {
+            throw new LocalStorageException("Unable to decrypt value of key " + key, e);
+        }
+
+        if (plaintext.length == 0) throw new LocalStorageException("Encrypted value of key " + key + " has no type");
+        return switch (plaintext[0]) {
+            case TYPE_STRING -> new String(plaintext, 1, plaintext.length - 1, StandardCharsets.UTF_8);
+            case TYPE_BYTES -> Arrays.copyOfRange(plaintext, 1, plaintext.length);
+            default -> throw new LocalStorageException("Unknown value type %d of key %s".formatted(plaintext[0], key));
+        };
+    }
+
+    /**
+     * @return the sealed value of the node, encrypted once per node and cached in it
+     */
+    private SealedValue seal(PersistentTreeMap.Node<Object> node) {
+        if (node.getValue() instanceof SealedValue sealed && sealed.helper == this) return sealed;
+        if (node.getSealed() instanceof SealedValue sealed && sealed.helper == this) return sealed;
+
+        Object value = SealedValue.open(node.getValue());
+        SealedValue sealed = new SealedValue(this, node.getKey(), null, sealValue(node.getKey(), value), value);
+        node.setSealed(sealed);
+        return sealed;
+    }
+
+    @SneakyThrows
+    private byte[] sealValue(String key, Object value) {
+        byte[] bytes = value instanceof byte[] array ? array : ((String) value).getBytes(StandardCharsets.UTF_8);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        byte[] sealedValue = new byte[NONCE_LENGTH + 1 + bytes.length + TAG_LENGTH / 8];
+        System.arraycopy(nonce, 0, sealedValue, 0, NONCE_LENGTH);
+
+        Cipher cipher = VALUE_CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, valueKey, new GCMParameterSpec(TAG_LENGTH, sealedValue, 0, NONCE_LENGTH));
+        cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+        int length = cipher.update(new byte[]{value instanceof byte[] ? TYPE_BYTES : TYPE_STRING}, 0, 1, sealedValue, NONCE_LENGTH);
+        cipher.doFinal(bytes, 0, bytes.length, sealedValue, NONCE_LENGTH + length);
+        return sealedValue;
+    }
+
+    private byte[] sealedKey(SealedValue sealed) {
+        byte[] sealedKey = sealed.sealedKey;
+        if (sealedKey == null) {
+            sealedKey = sealKey(sealed.key);
+            sealed.sealedKey = sealedKey;
+        }
+        return sealedKey;
+    }
+
+    @SneakyThrows
+    private byte[] sealKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] sealedKey = new byte[IV_LENGTH + bytes.length];
+        System.arraycopy(syntheticIv(bytes), 0, sealedKey, 0, IV_LENGTH);
+
+        Cipher cipher = KEY_CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, keyKey, new IvParameterSpec(sealedKey, 0, IV_LENGTH));
+        cipher.doFinal(bytes, 0, bytes.length, sealedKey, IV_LENGTH);
+        return sealedKey;
+    }
+
+    private String openKey(byte[] sealedKey) {
+        if (sealedKey.length < IV_LENGTH) throw new LocalStorageException("Encrypted key is corrupted");
+        byte[] bytes;
+        try {
+            Cipher cipher = KEY_CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, keyKey, new IvParameterSpec(sealedKey, 0, IV_LENGTH));
+            bytes = cipher.doFinal(sealedKey, IV_LENGTH, sealedKey.length - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new LocalStorageException("Unable to decrypt key", e);
+        }
+        if (!MessageDigest.isEqual(syntheticIv(bytes), Arrays.copyOf(sealedKey, IV_LENGTH))) {
+            throw new LocalStorageException("Encrypted key is corrupted");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @SneakyThrows
+    private byte[] syntheticIv(byte[] keyBytes) {
+        Mac mac = MAC.get();
+        mac.init(macKey);
+        return Arrays.copyOf(mac.doFinal(keyBytes), IV_LENGTH);
+    }
+
+    /**
+     * @param firstByte first byte of the length, read ahead to detect the end of the file
+     */
+    private static byte[] readBytes(DataInputStream inputStream, int firstByte) throws IOException {
+        if (firstByte == -1) throw new EOFException();
+        int length = firstByte << 24 | inputStream.readUnsignedByte() << 16 | inputStream.readUnsignedShort();
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+            throw new LocalStorageException("Malformed encrypted local storage record of length " + length);
+        }
+        // grows as bytes arrive, so a corrupt length hits the end of the file instead of allocating it upfront
+        byte[] bytes = inputStream.readNBytes(length);
+        if (bytes.length != length) throw new EOFException();
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream outputStream, byte[] bytes) throws IOException {
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    @SneakyThrows
+    private static SecretKey deriveKey(SecretKey dataKey, String label, String algorithm) {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(dataKey.getEncoded(), MAC_ALGORITHM));
+        return new SecretKeySpec(mac.doFinal(label.getBytes(StandardCharsets.UTF_8)), algorithm);
+    }
+
+    @SneakyThrows
+    private static Cipher cipher(String transformation) {
+        return Cipher.getInstance(transformation);
+    }
+
+    @SneakyThrows
+    private static Mac mac() {
+        return Mac.getInstance(MAC_ALGORITHM);
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Header written by {@link FileLocalStorage} in front of the storage file payload.
+ * <p>
+ * Layout: {@code "LSH" version(1) format(1) compression(1) encryption(1) flags(1) itemCount(4) payloadSize(8)
+ * payloadChecksum(4) headerChecksum(4)}. Checksums are CRC32C, {@code headerChecksum} covers the preceding header
+ * bytes. Payloads of {@link LocalStorageEncryption#FILE} are authenticated frame by frame, so the {@code CHECKSUM}
+ * flag and the payload checksum are set for all other payloads only. Entry-encrypted payloads keep the checksum, their
+ * format authenticates each value but not the file as a whole.
+ * <p>
+ * A damaged header or a payload size not matching the file size is rejected before the payload is read, a payload
+ * checksum mismatch when the payload has been read and before it is applied. When recovering, only a damaged header
+ * is fatal, the other defects are reported to the {@link RecordSink} and the payload is read as far as it goes.
+ * Files without the header are read as before. Tools reading plain {@code key=value} files should be given
+ * {@link LocalStorage#exportTo(java.nio.file.Path)}.
+ */
+class FileHeaderHelper {
+
+    static final int HEADER_LENGTH = 28;
+
+    private static final byte[] MAGIC = {'L', 'S', 'H'};
+    private static final byte VERSION = 1;
+
+    static final byte COMPRESSION_NONE = 0;
+    static final byte COMPRESSION_GZIP = 1;
+
+    private static final byte FLAG_CHECKSUM = 1;
+
+    /**
+     * @param encryption {@code null} for unencrypted storages
+     */
+    record Header(@NotNull LocalStorageFormat format, byte compression, LocalStorageEncryption encryption,
+                  int itemCount, long payloadSize, int payloadChecksum) {
+
+        boolean hasChecksum() {
+            return hasChecksum(encryption);
+        }
+
+        static boolean hasChecksum(LocalStorageEncryption encryption) {
+            return encryption != LocalStorageEncryption.FILE;
+        }
+    }
+
+    /**
+     * Peeks at the start of the stream without consuming it
+     */
+    static boolean hasHeader(@NotNull InputStream inputStream) throws IOException {
+        inputStream.mark(MAGIC.length + 1);
+        byte[] bytes = inputStream.readNBytes(MAGIC.length + 1);
+        inputStream.reset();
+        return bytes.length == MAGIC.length + 1
+                && Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                && bytes[MAGIC.length] == VERSION;
+    }
+
+    static byte @NotNull [] write(@NotNull Header header) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH)
+                .put(MAGIC)
+                .put(VERSION)
+                .put((byte) header.format().ordinal())
+                .put(header.compression())
+                .put((byte) (header.encryption() == null ? 0 : header.encryption().ordinal() + 1))
+                .put(header.hasChecksum() ? FLAG_CHECKSUM : 0)
+                .putInt(header.itemCount())
+                .putLong(header.payloadSize())
+                .putInt(header.hasChecksum() ? header.payloadChecksum() : 0);
+        return buffer.putInt(checksum(buffer.array(), HEADER_LENGTH - Integer.BYTES)).array();
+    }
+
+    /**
+     * Reads and validates the header, checks run in constant time
+     *
+     * @param fileSize size of the whole file
+     */
+    static @NotNull Header read(@NotNull InputStream inputStream, long fileSize, @NotNull RecordSink sink) throws IOException {
+        byte[] bytes = inputStream.readNBytes(HEADER_LENGTH);
+        if (bytes.length < HEADER_LENGTH) throw new LocalStorageException("Local storage file header is truncated");
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt(HEADER_LENGTH - Integer.BYTES) != checksum(bytes, HEADER_LENGTH - Integer.BYTES)) {
+            throw new LocalStorageException("Local storage file header is corrupted");
+        }
+
+        buffer.position(MAGIC.length + 1);
+        int format = buffer.get();
+        byte compression = buffer.get();
+        int encryption = buffer.get();
+        byte flags = buffer.get();
+        int itemCount = buffer.getInt();
+        long payloadSize = buffer.getLong();
+        int payloadChecksum = buffer.getInt();
+
+        if (format < 0 || format >= LocalStorageFormat.values().length
+                || compression < COMPRESSION_NONE || compression > COMPRESSION_GZIP
+                || encryption < 0 || encryption > LocalStorageEncryption.values().length
+                || ((flags & FLAG_CHECKSUM) != 0)
+                != Header.hasChecksum(encryption == 0 ? null : LocalStorageEncryption.values()[encryption - 1])) {
+            throw new LocalStorageException("Unsupported local storage file header");
+        }
+        if (payloadSize != fileSize - HEADER_LENGTH) {
+            sink.problem("Local storage file size %d does not match %d recorded in its header"
+                    .formatted(fileSize, payloadSize + HEADER_LENGTH));
+        }
+
+        return new Header(
+                LocalStorageFormat.values()[format],
+                compression,
+                encryption == 0 ? null : LocalStorageEncryption.values()[encryption - 1],
+                itemCount,
+                payloadSize,
+                payloadChecksum
+        );
+    }
+
+    /**
+     * @return stream of the payload, fails once the payload is read if it does not match the header checksum
+     */
+    static @NotNull InputStream payload(@NotNull InputStream inputStream, @NotNull Header header, @NotNull RecordSink sink) {
+        return header.hasChecksum() ? new ChecksumInputStream(inputStream, header, sink) : inputStream;
+    }
+
+    private static int checksum(byte[] bytes, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Counts and checksums the payload written through it, does not close the underlying stream
+     */
+    static class PayloadOutputStream extends FilterOutputStream {
+
+        private final CRC32C crc = new CRC32C();
+        private long size;
+
+        PayloadOutputStream(@NotNull OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte @NotNull [] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            crc.update(bytes, offset, length);
+            size += length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        int getChecksum() {
+            return (int) crc.getValue();
+        }
+    }
+
+    private static class ChecksumInputStream extends FilterInputStream {
+
+        private final CRC32C crc = new CRC32C();
+        private final int expected;
+        private final RecordSink sink;
+        private long remaining;
+
+        ChecksumInputStream(InputStream inputStream, Header header, RecordSink sink) {
+            super(inputStream);
+            this.sink = sink;
+            expected = header.payloadChecksum();
+            remaining = header.payloadSize();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                crc.update(b);
+                consumed(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte @NotNull [] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                crc.update(bytes, offset, read);
+                consumed(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void consumed(int count) {
+            remaining -= count;
+            if (remaining == 0 && (int) crc.getValue() != expected) {
+                sink.problem("Local storage file is corrupted, payload checksum mismatch");
+            }
+        }
+    }
+}
@@ -22,69 +22,411 @@ import com.ancevt.util.args.Args;
 import lombok.SneakyThrows;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 public class FileLocalStorage extends LocalStorage {
 
-    FileLocalStorage(@NotNull String filename,
-                     boolean saveOnWrite,
-                     String storageId,
-                     String directoryPath) {
-        super(filename, saveOnWrite, storageId, directoryPath);
+    private static final int BUFFER_SIZE = 1 << 16;
 
-        Path dir = DirectoryHelper.createOrGetDirectory(this);
+    /**
+     * Serializes file access. A lock instead of {@code synchronized} keeps virtual threads unpinned while they wait
+     * for or perform blocking I/O
+     */
+    private final ReentrantLock ioLock = new ReentrantLock();
 
-        if (Files.exists(Path.of(dir.toString() + File.separatorChar + filename))) {
-            load();
+    private final Path filePath;
+    private final LocalStorageFormat format;
+    private final boolean compress;
+    private final boolean recover;
+
+    // guarded by ioLock
+    private long savedModificationCount = -1;
+    private boolean directoryCreated;
+
+    /**
+     * Set while the storage file failed to load, saving then would overwrite the data the file still holds
+     */
+    private volatile boolean loadFailed;
+    private volatile LocalStorageVerification openRecovery;
+    private volatile MappedNumbers numbers;
+
+    FileLocalStorage(@NotNull LocalStorageConfig config) {
+        super(config);
+        filePath = config.filePath();
+        format = config.format();
+        compress = config.compress();
+        recover = config.recover();
+    }
+
+    /**
+     * @throws LocalStorageException if the file fails to load, unless it is recovered, see
+     *                               {@link LocalStorageBuilder#recover(boolean)}
+     */
+    @Override
+    protected void open() {
+        if (Files.exists(filePath)) {
+            if (recover) {
+                openRecovery = recover();
+            } else {
+                load();
+            }
         }
     }
 
-    @SneakyThrows
     @Override
     public void save() {
-        Path dir = DirectoryHelper.createOrGetDirectory(this);
-        Files.writeString(
-                Path.of(dir.toString() + File.separatorChar + getFilename()),
-                stringify(),
-                StandardCharsets.UTF_8,
-                StandardOpenOption.WRITE,
-                CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING
-        );
+        long modificationCount = getModificationCount();
+
+        ioLock.lock();
+        try {
+            if (numbers != null) numbers.force();
+
+            if (loadFailed) {
+                throw new LocalStorageException("Local storage " + getFilename() + " is not saved, its file failed to "
+                        + "load. Load it again, recover() it or clear() it to save over the file");
+            }
+
+            // another thread has already persisted this state while we were waiting for the lock
+            if (modificationCount <= savedModificationCount) return;
+
+            LocalStorageSnapshot snapshot = snapshot();
+
+            LocalStorageMetrics.Sample sample = getMetrics().begin(this, LocalStorageMetrics.Operation.SAVE);
+            long size = writeFile(snapshot);
+            savedModificationCount = snapshot.getVersion();
+            sample.end(size, snapshot.getItemCount());
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the storage file even if nothing changed since the last save
+     */
+    protected void rewrite() {
+        ioLock.lock();
+        try {
+            savedModificationCount = -1;
+            save();
+        } finally {
+            ioLock.unlock();
+        }
     }
 
-    @SneakyThrows
     @Override
     public LocalStorage load() {
-        Path dir = DirectoryHelper.createOrGetDirectory(this);
+        read(RecordSink.load());
+        return this;
+    }
+
+    /**
+     * Loads the storage skipping damaged records instead of failing on the first one, only a damaged file header is
+     * fatal. The file is left as is until the next save replaces it with the salvaged data
+     *
+     * @return number of records loaded and the problems found
+     */
+    public LocalStorageVerification recover() {
+        return read(RecordSink.recover());
+    }
 
+    /**
+     * @return records and problems found when the storage was recovered on open, see
+     * {@link LocalStorageBuilder#recover(boolean)}. {@code null} if it was not recovered
+     */
+    public LocalStorageVerification getOpenRecovery() {
+        ensureOpen();
+        return openRecovery;
+    }
+
+    /**
+     * Checks every record of the storage file without loading it. Runs alongside reads, writes and saves of the
+     * storage, so many storages can be checked in parallel, see {@link #verifyAsync()}. A missing file is valid
+     */
+    public LocalStorageVerification verify() {
+        RecordSink sink = RecordSink.verify();
+        if (Files.exists(filePath)) {
+            try {
+                readFile(sink);
+            } catch (IOException e) {
+                sink.problem("Unable to read local storage " + getFilename() + ": " + e.getMessage());
+            } catch (LocalStorageException e) {
+                sink.problem("Unreadable local storage " + getFilename(), e);
+            }
+        }
+        return sink.toVerification();
+    }
+
+    /**
+     * @see #verify()
+     */
+    public CompletableFuture<LocalStorageVerification> verifyAsync() {
+        return CompletableFuture.supplyAsync(this::verify, getExecutor());
+    }
+
+    private LocalStorageVerification read(RecordSink sink) {
+        ioLock.lock();
         try {
-            Files.readAllLines(
-                    Path.of(dir.toString() + File.separatorChar + getFilename())
-            ).forEach(this::parseLine);
-        } catch (Exception e) {
-            // TODO: log error
-            e.printStackTrace();
+            loadFailed = true;
+            LocalStorageMetrics.Sample sample = getMetrics().begin(this, LocalStorageMetrics.Operation.LOAD);
+
+            long size;
+            try {
+                size = readFile(sink);
+            } catch (IOException e) {
+                throw new LocalStorageException("Unable to load local storage " + getFilename(), e);
+            }
+
+            List<Map.Entry<String, Object>> parsed = sink.getEntries();
+            if (!parsed.isEmpty()) {
+                update(entries -> {
+                    for (Map.Entry<String, Object> entry : parsed) {
+                        entries = entry.getValue() == null
+                                ? entries.remove(entry.getKey())
+                                : entries.put(entry.getKey(), entry.getValue());
+                    }
+                    return entries;
+                });
+            }
+            sample.end(size, getItemCount());
+            loadFailed = false;
+            return sink.toVerification();
+        } finally {
+            ioLock.unlock();
         }
-        return this;
+    }
+
+    /**
+     * Decodes the whole file into the sink. With a recovering sink the records read before a part of the file that
+     * cannot be read any further are kept
+     *
+     * @return size of the file
+     */
+    private long readFile(RecordSink sink) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(filePath), BUFFER_SIZE)) {
+            long size = Files.size(filePath);
+            InputStream payload = inputStream;
+            if (FileHeaderHelper.hasHeader(inputStream)) {
+                FileHeaderHelper.Header header = FileHeaderHelper.read(inputStream, size, sink);
+                sink.expect(header.itemCount());
+                payload = FileHeaderHelper.payload(inputStream, header, sink);
+                if (header.compression() == FileHeaderHelper.COMPRESSION_GZIP) {
+                    payload = new GZIPInputStream(payload, BUFFER_SIZE);
+                }
+                payload = new BufferedInputStream(payload, BUFFER_SIZE);
+            }
+
+            try {
+                deserialize(payload, sink);
+            } catch (IOException | LocalStorageException e) {
+                if (!sink.isRecovering()) throw e;
+                sink.problem("Stopped reading at a damaged part of the file: " + e.getMessage());
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Also allows saving over a storage file that failed to load
+     */
+    @Override
+    public LocalStorage clear() {
+        loadFailed = false;
+        return super.clear();
     }
 
     @SneakyThrows
     @Override
     public LocalStorage deleteResources() {
         clear();
-        Path dir = DirectoryHelper.createOrGetDirectory(this);
-        Files.deleteIfExists(Path.of(dir.toString() + File.separatorChar + getFilename()));
-        DirectoryHelper.deleteDirectoryIfEmpty(this);
-        return this;
+        // a write-behind save queued by clear() must not recreate the file once it is deleted
+        flush();
+        ioLock.lock();
+        try {
+            Files.deleteIfExists(filePath);
+            closeResources();
+            Files.deleteIfExists(getNumbersFilePath());
+            DirectoryHelper.deleteDirectoryIfEmpty(this);
+            savedModificationCount = -1;
+            directoryCreated = false;
+            return this;
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the numeric file, {@link #numbers()} opens it again
+     */
+    @SneakyThrows
+    @Override
+    protected void closeResources() {
+        ioLock.lock();
+        try {
+            if (numbers != null) {
+                numbers.close();
+                numbers = null;
+            }
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the snapshot to the storage file, text is streamed without building it in memory
+     */
+    protected void serialize(@NotNull LocalStorageSnapshot snapshot, @NotNull OutputStream outputStream) throws IOException {
+        switch (format) {
+            case TEXT -> BackupHelper.write(outputStream, null, snapshot);
+            case BINARY -> outputStream.write(BinaryFormatHelper.write(snapshot.getEntries()));
+        }
+    }
+
+    /**
+     * Decodes the payload of the storage file, the records are applied by the caller
+     *
+     * @param inputStream payload of the storage file, supports {@link InputStream#mark(int)}
+     */
+    void deserialize(@NotNull InputStream inputStream, @NotNull RecordSink sink) throws IOException {
+        if (BinaryFormatHelper.isBinaryFormat(inputStream)) {
+            BinaryFormatHelper.read(inputStream.readAllBytes(), sink);
+        } else {
+            readLines(new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8)), sink);
+        }
+    }
+
+    /**
+     * Malformed lines are reported to the sink with their line number
+     */
+    static void readLines(@NotNull BufferedReader reader, @NotNull RecordSink sink) throws IOException {
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lineNumber++;
+            String[] entry;
+            try {
+                entry = parseEntry(line);
+            } catch (LocalStorageException e) {
+                sink.problem("Malformed line " + lineNumber, e);
+                continue;
+            }
+            if (entry != null) sink.accept(entry[0], entry[1] != null ? BinaryFormatHelper.fromText(entry[1]) : null);
+        }
+    }
+
+    /**
+     * @return encryption recorded in the file header, {@code null} if the payload is not encrypted
+     */
+    LocalStorageEncryption headerEncryption() {
+        return null;
+    }
+
+    /**
+     * @return counters and gauges of this storage kept in a memory-mapped {@code .num} file next to the storage file,
+     * opened on the first call and closed by {@link #close()}. They are not entries of the storage, see
+     * {@link MappedNumbers}
+     * @throws LocalStorageException if the file is open by another instance or process
+     */
+    @SneakyThrows
+    public MappedNumbers numbers() {
+        MappedNumbers numbers = this.numbers;
+        if (numbers != null) return numbers;
+
+        ioLock.lock();
+        try {
+            if (this.numbers == null) {
+                createDirectory();
+                this.numbers = MappedNumbers.open(getNumbersFilePath());
+            }
+            return this.numbers;
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    public LocalStorageFormat getFormat() {
+        return format;
+    }
+
+    public Path getFilePath() {
+        return filePath;
+    }
+
+    private Path getNumbersFilePath() {
+        return filePath.resolveSibling(filePath.getFileName() + ".num");
+    }
+
+    private void createDirectory() throws IOException {
+        if (!directoryCreated) {
+            Files.createDirectories(filePath.getParent());
+            directoryCreated = true;
+        }
+    }
+
+    /**
+     * Writes to a temporary file first and moves it over the storage file, so the storage file is never left
+     * partially written. The payload is streamed after room for the {@link FileHeaderHelper} header, which is filled
+     * in once the payload size and checksum are known
+     */
+    private long writeFile(LocalStorageSnapshot snapshot) {
+        Path tempFilePath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        try {
+            createDirectory();
+            try (FileChannel channel = FileChannel.open(tempFilePath, WRITE, CREATE, TRUNCATE_EXISTING)) {
+                channel.position(FileHeaderHelper.HEADER_LENGTH);
+                FileHeaderHelper.PayloadOutputStream payload =
+                        new FileHeaderHelper.PayloadOutputStream(Channels.newOutputStream(channel));
+                try (OutputStream outputStream = compress
+                        ? new GZIPOutputStream(new BufferedOutputStream(payload, BUFFER_SIZE), BUFFER_SIZE)
+                        : new BufferedOutputStream(payload, BUFFER_SIZE)) {
+                    serialize(snapshot, outputStream);
+                }
+
+                FileHeaderHelper.Header header = new FileHeaderHelper.Header(
+                        format,
+                        compress ? FileHeaderHelper.COMPRESSION_GZIP : FileHeaderHelper.COMPRESSION_NONE,
+                        headerEncryption(),
+                        snapshot.getItemCount(),
+                        payload.getSize(),
+                        payload.getChecksum()
+                );
+                channel.write(ByteBuffer.wrap(FileHeaderHelper.write(header)), 0);
+            }
+            long size = Files.size(tempFilePath);
+            try {
+                Files.move(tempFilePath, filePath, REPLACE_EXISTING, ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFilePath, filePath, REPLACE_EXISTING);
+            }
+            return size;
+        } catch (IOException e) {
+            throw new LocalStorageException("Unable to save local storage " + getFilename(), e);
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,336 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Read-only copy of a storage laid out for lookup latency, see {@link LocalStorage#freeze()}.
+ * <p>
+ * Entries are kept in flat arrays with an open addressing hash table over them, a lookup costs the cached hash of the
+ * key and usually a single {@code equals}. Values that parse as numbers or booleans are decoded once when the table is
+ * built, so the typed getters return them without parsing. Values of {@link LocalStorageEncryption#VALUES} storages are
+ * decrypted when the table is built.
+ * <p>
+ * The table is immutable. When the data of the storage changes, for example on {@link LocalStorage#load()}, a new table
+ * is built in the background and replaces the former one at once, readers see either of them as a whole. Since every
+ * change rebuilds the table, it suits data that changes rarely. If a rebuild fails, for example because an encrypted
+ * value fails authentication, the former table stays in place, {@link #awaitVersion} throws the failure and the next
+ * change of the storage tries again.
+ */
+public final class FrozenLocalStorage implements AutoCloseable {
+
+    private static final byte HAS_LONG = 1;
+    private static final byte HAS_DOUBLE = 1 << 1;
+    private static final byte TRUE = 1 << 2;
+
+    private final LocalStorage localStorage;
+    private final Consumer<LocalStorageSnapshot> listener = this::onUpdate;
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition rebuilt = lock.newCondition();
+
+    private volatile Table table;
+    private volatile LocalStorageSnapshot pending;
+
+    // guarded by lock
+    private RuntimeException failure;
+    private volatile long failedVersion = -1;
+
+    FrozenLocalStorage(@NotNull LocalStorage localStorage) {
+        this.localStorage = localStorage;
+        localStorage.addUpdateListener(listener);
+        swap(new Table(localStorage.snapshot()));
+    }
+
+    public boolean contains(String key) {
+        return table.indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the value, binary values are returned in their escaped text form
+     */
+    public String getString(String key) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        return index >= 0 ? BinaryFormatHelper.toText(table.values[index]) : null;
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = getString(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        return index >= 0 && (table.flags[index] & HAS_LONG) != 0 ? table.longs[index] : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        if (index < 0 || (table.flags[index] & HAS_LONG) == 0) return defaultValue;
+        long value = table.longs[index];
+        return value == (int) value ? (int) value : defaultValue;
+    }
+
+    public short getShort(String key, short defaultValue) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        if (index < 0 || (table.flags[index] & HAS_LONG) == 0) return defaultValue;
+        long value = table.longs[index];
+        return value == (short) value ? (short) value : defaultValue;
+    }
+
+    public byte getByte(String key, byte defaultValue) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        if (index < 0 || (table.flags[index] & HAS_LONG) == 0) return defaultValue;
+        long value = table.longs[index];
+        return value == (byte) value ? (byte) value : defaultValue;
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        return index >= 0 && (table.flags[index] & HAS_DOUBLE) != 0 ? table.doubles[index] : defaultValue;
+    }
+
+    /**
+     * Parsed on every call, narrowing the decoded double could round differently than {@link Float#parseFloat(String)}
+     */
+    public float getFloat(String key, float defaultValue) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        if (index < 0 || (table.flags[index] & HAS_DOUBLE) == 0) return defaultValue;
+        return Float.parseFloat(BinaryFormatHelper.toText(table.values[index]));
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        return index >= 0 ? (table.flags[index] & TRUE) != 0 : defaultValue;
+    }
+
+    public char getChar(String key, char defaultValue) {
+        String value = getString(key);
+        return value != null && !value.isEmpty() ? value.charAt(0) : defaultValue;
+    }
+
+    /**
+     * @return copy of a binary value, UTF-8 bytes of a string value, {@code null} if there is no value
+     */
+    public byte[] getBytes(String key) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        if (index < 0) return null;
+        Object value = table.values[index];
+        return value instanceof byte[] bytes ? bytes.clone() : ((String) value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public int getItemCount() {
+        return table.keys.length;
+    }
+
+    /**
+     * @return version of the storage data the current table was built from, see
+     * {@link LocalStorageSnapshot#getVersion()}
+     */
+    public long getVersion() {
+        return table.version;
+    }
+
+    /**
+     * @return {@code true} if a table of the version or a later one was built within the timeout
+     * @throws LocalStorageException if the last rebuild failed and no later table was built since
+     */
+    public boolean awaitVersion(long version, @NotNull Duration timeout) throws InterruptedException {
+        long nanos = timeout.toNanos();
+        lock.lock();
+        try {
+            while (table.version < version) {
+                if (failure != null) {
+                    throw new LocalStorageException(
+                            "Unable to build frozen table of version " + failedVersion, failure
+                    );
+                }
+                if (nanos <= 0) return false;
+                nanos = rebuilt.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops following changes of the storage, the current table stays readable
+     */
+    @Override
+    public void close() {
+        localStorage.removeUpdateListener(listener);
+    }
+
+    /**
+     * Called under the writer lock of the storage, hands the snapshot over to a background rebuild
+     */
+    private void onUpdate(LocalStorageSnapshot snapshot) {
+        pending = snapshot;
+        if (rebuilding.compareAndSet(false, true)) {
+            localStorage.getExecutor().execute(this::rebuild);
+        }
+    }
+
+    /**
+     * A failed version is not retried, the next update starts a new rebuild
+     */
+    private void rebuild() {
+        do {
+            LocalStorageSnapshot snapshot = pending;
+            try {
+                if (snapshot.getVersion() > getBuiltVersion()) swap(new Table(snapshot));
+            } catch (RuntimeException e) {
+                fail(snapshot.getVersion(), e);
+            } finally {
+                rebuilding.set(false);
+            }
+        } while (pending.getVersion() > Math.max(getBuiltVersion(), failedVersion)
+                && rebuilding.compareAndSet(false, true));
+    }
+
+    /**
+     * @return version of the current table, -1 while the first table is being built
+     */
+    private long getBuiltVersion() {
+        Table table = this.table;
+        return table != null ? table.version : -1;
+    }
+
+    private void swap(Table table) {
+        lock.lock();
+        try {
+            if (this.table == null || table.version > this.table.version) this.table = table;
+            if (table.version > failedVersion) failure = null;
+            rebuilt.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(long version, RuntimeException e) {
+        lock.lock();
+        try {
+            failure = e;
+            failedVersion = version;
+            rebuilt.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Table {
+
+        private final long version;
+        private final String[] keys;
+        private final Object[] values;
+        private final byte[] flags;
+        private final long[] longs;
+        private final double[] doubles;
+
+        /**
+         * Indexes of entries plus one by hash of their keys, 0 marks a free slot
+         */
+        private final int[] slots;
+        private final int mask;
+
+        private Table(LocalStorageSnapshot snapshot) {
+            version = snapshot.getVersion();
+            int size = snapshot.getItemCount();
+            keys = new String[size];
+            values = new Object[size];
+            flags = new byte[size];
+            longs = new long[size];
+            doubles = new double[size];
+            slots = new int[Math.max(Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1, 2)];
+            mask = slots.length - 1;
+
+            int index = 0;
+            for (Map.Entry<String, Object> entry : snapshot.getEntries()) {
+                String key = entry.getKey();
+                Object value = SealedValue.open(entry.getValue());
+                keys[index] = key;
+                values[index] = value;
+                if (value instanceof String string) decode(index, string);
+
+                int slot = spread(key.hashCode()) & mask;
+                while (slots[slot] != 0) slot = (slot + 1) & mask;
+                slots[slot] = index + 1;
+                index++;
+            }
+        }
+
+        private int indexOf(String key) {
+            if (key == null) return -1;
+            for (int slot = spread(key.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+                int index = slots[slot] - 1;
+                if (index < 0) return -1;
+                if (keys[index].equals(key)) return index;
+            }
+        }
+
+        /**
+         * Decodes the value as the typed getters of {@link LocalStorage} would
+         */
+        private void decode(int index, String value) {
+            if (value.equalsIgnoreCase("true")) flags[index] |= TRUE;
+            if (value.isEmpty()) return;
+
+            // skips parsing, and the cost of its exception, for values that cannot be numbers
+            char first = value.charAt(0);
+            if (Character.isDigit(first) || first == '-' || first == '+') {
+                try {
+                    longs[index] = Long.parseLong(value);
+                    flags[index] |= HAS_LONG;
+                } catch (NumberFormatException e) {
+                    // not an integer
+                }
+            }
+            if (Character.isDigit(first) || "+-.NI".indexOf(first) >= 0 || first <= ' ') {
+                try {
+                    doubles[index] = Double.parseDouble(value);
+                    flags[index] |= HAS_DOUBLE;
+                } catch (NumberFormatException e) {
+                    // not a number
+                }
+            }
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Emits every storage operation as a {@code com.ancevt.localstorage.Operation} JFR event, so counts, latency
+ * histograms and byte amounts can be inspected with JDK Mission Control or {@code jfr print} without any
+ * external service. Events are only recorded while a flight recording is running.
+ */
+public class JfrLocalStorageMetrics implements LocalStorageMetrics {
+
+    @Override
+    public @NotNull Sample begin(@NotNull LocalStorage localStorage, @NotNull Operation operation) {
+        OperationEvent event = new OperationEvent();
+        if (!event.isEnabled()) return Sample.NOOP;
+
+        event.begin();
+        return (bytes, entries) -> {
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation.name();
+                event.storageId = localStorage.getStorageId();
+                event.filename = localStorage.getFilename();
+                event.bytes = bytes;
+                event.entries = entries;
+                event.commit();
+            }
+        };
+    }
+
+    @Name("com.ancevt.localstorage.Operation")
+    @Label("Local Storage Operation")
+    @Category("Local Storage")
+    @Description("Save, load, encryption or group query performed by a local storage")
+    @StackTrace(false)
+    static class OperationEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Storage Id")
+        String storageId;
+
+        @Label("Filename")
+        String filename;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Entries")
+        int entries;
+    }
+}
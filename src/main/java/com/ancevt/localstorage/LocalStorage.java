@@ -21,13 +21,33 @@ import com.ancevt.util.texttable.TextTable;
 import lombok.SneakyThrows;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
 import static java.lang.Byte.parseByte;
 import static java.lang.Double.parseDouble;
@@ -39,45 +59,85 @@ import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
-abstract public class LocalStorage {
+abstract public class LocalStorage implements AutoCloseable {
 
     protected static final String DELIMITER = "=";
 
-    protected final Map<String, String> data;
+    /**
+     * Live view of the storage data. Writes through it are applied like {@link #importFrom(Map)}, they do not trigger
+     * {@code saveOnWrite}
+     */
+    protected final Map<String, String> data = new DataView();
 
     private final String filename;
     private final boolean saveOnWrite;
+    private final boolean writeBehind;
     private final String storageId;
     private final String directoryPath;
+    private final LocalStorageMetrics metrics;
+    private final Executor executor;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock openLock = new ReentrantLock();
+    private volatile boolean openPending;
+    private volatile LocalStorageSnapshot snapshot = LocalStorageSnapshot.EMPTY;
+    private volatile Path registryKey;
+    private final List<Consumer<LocalStorageSnapshot>> updateListeners = new CopyOnWriteArrayList<>();
+    private final AtomicReference<Map.Entry<String, LocalStorageSnapshot>> checkpoint = new AtomicReference<>();
+    private final SavePipeline savePipeline;
 
     public LocalStorage(@NotNull String filename,
                         boolean saveOnWrite,
                         String storageId,
                         String directoryPath) {
-        this.filename = filename;
-        this.saveOnWrite = saveOnWrite;
-        this.storageId = storageId;
-        this.directoryPath = directoryPath;
-        data = new ConcurrentHashMap<>();
+        this(LocalStorageConfig.of(filename, saveOnWrite, storageId, directoryPath));
+    }
+
+    public LocalStorage(@NotNull LocalStorageConfig config) {
+        this.filename = config.filename();
+        this.saveOnWrite = config.saveOnWrite();
+        this.writeBehind = config.writeBehind();
+        this.storageId = config.storageId();
+        this.directoryPath = config.directoryPath();
+        this.metrics = config.metrics();
+        this.executor = config.executor();
+        this.savePipeline = new SavePipeline(this, executor);
+        config.indexedKeyPrefixes().forEach(this::createIndex);
     }
 
     public boolean contains(String key) {
-        return data.containsKey(key);
+        return snapshot().contains(key);
     }
 
 
     public String computeIfAbsent(String key, Function<String, String> mappingFunction) {
-        return data.computeIfAbsent(key, mappingFunction);
+        String value = snapshot().getString(key);
+        if (value != null) return value;
+
+        writeLock.lock();
+        try {
+            value = snapshot().getString(key);
+            if (value == null) {
+                value = mappingFunction.apply(key);
+                if (value != null) {
+                    String computed = value;
+                    update(entries -> entries.put(key, computed));
+                }
+            }
+            return value;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
 
     public String getString(String key) {
-        return data.get(key);
+        return snapshot().getString(key);
     }
 
 
     public String getString(String key, String defaultValue) {
-        return data.getOrDefault(key, defaultValue);
+        String value = snapshot().getString(key);
+        return value != null ? value : defaultValue;
     }
 
 
@@ -154,35 +214,153 @@ abstract public class LocalStorage {
 
 
     public LocalStorage parse(@NotNull String source) {
-        source.lines().forEach(this::parseLine);
+        applyLines(source.lines().toList());
         return this;
     }
 
 
     public LocalStorage put(String key, Object value) {
-        data.put(key, String.valueOf(value));
-        if (saveOnWrite) save();
+        String string = String.valueOf(value);
+        update(entries -> entries.put(key, string));
+        saveOnWrite();
         return this;
     }
 
 
+    /**
+     * Stores a copy of the bytes as a binary value. It is kept raw in memory and in {@link LocalStorageFormat#BINARY}
+     * files, text representations escape it with Base64
+     */
+    public LocalStorage putBytes(String key, byte @NotNull [] value) {
+        byte[] bytes = value.clone();
+        update(entries -> entries.put(key, bytes));
+        saveOnWrite();
+        return this;
+    }
+
+    /**
+     * Stores a copy of the remaining bytes of the buffer as a binary value, see {@link #putBytes(String, byte[])}
+     */
+    public LocalStorage putBytes(String key, @NotNull ByteBuffer value) {
+        byte[] bytes = new byte[value.remaining()];
+        value.duplicate().get(bytes);
+        update(entries -> entries.put(key, bytes));
+        saveOnWrite();
+        return this;
+    }
+
+    /**
+     * @return copy of a binary value, UTF-8 bytes of a string value, {@code null} if there is no value
+     */
+    public byte[] getBytes(String key) {
+        return snapshot().getBytes(key);
+    }
+
+    /**
+     * @return read-only buffer over a binary value without copying it, see {@link #getBytes(String)}
+     */
+    public ByteBuffer getByteBuffer(String key) {
+        return snapshot().getByteBuffer(key);
+    }
+
+    /**
+     * @return read-only copy of the data laid out for lookup latency. It is rebuilt in the background whenever the
+     * data changes, for example on {@link #load()}, and should be closed once no longer used
+     */
+    public FrozenLocalStorage freeze() {
+        return new FrozenLocalStorage(this);
+    }
+
+    /**
+     * Declares a secondary index on the values of keys starting with {@code keyPrefix}. The index is built from the
+     * current entries once and then kept up to date by every write and load, making
+     * {@link #findKeys(String, String)} on this prefix O(result). Indexes are kept in memory only.
+     */
+    public LocalStorage createIndex(@NotNull String keyPrefix) {
+        ensureOpen();
+        writeLock.lock();
+        try {
+            LocalStorageSnapshot current = snapshot;
+            if (current.hasIndex(keyPrefix)) return this;
+
+            Map<String, ValueIndex> indexes = new HashMap<>(current.getIndexes());
+            indexes.put(keyPrefix, ValueIndex.build(keyPrefix, current.getEntries()));
+            snapshot = new LocalStorageSnapshot(current.getEntries(), current.getVersion(), Map.copyOf(indexes));
+            return this;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public LocalStorage dropIndex(@NotNull String keyPrefix) {
+        ensureOpen();
+        writeLock.lock();
+        try {
+            LocalStorageSnapshot current = snapshot;
+            if (!current.hasIndex(keyPrefix)) return this;
+
+            Map<String, ValueIndex> indexes = new HashMap<>(current.getIndexes());
+            indexes.remove(keyPrefix);
+            snapshot = new LocalStorageSnapshot(current.getEntries(), current.getVersion(), Map.copyOf(indexes));
+            return this;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return keys starting with {@code keyPrefix} whose value equals {@code value}, see
+     * {@link LocalStorageSnapshot#findKeys(String, String)}
+     */
+    public @NotNull Set<String> findKeys(@NotNull String keyPrefix, @NotNull String value) {
+        return snapshot().findKeys(keyPrefix, value);
+    }
+
+    /**
+     * Stores the value encoded by the codec, see {@link ValueCodecs} for built-in codecs
+     */
+    public <T> LocalStorage put(String key, @NotNull T value, @NotNull ValueCodec<T> codec) {
+        return put(key, codec.encode(value));
+    }
+
+    /**
+     * @return value decoded by the codec, {@code null} if there is no value, see
+     * {@link LocalStorageSnapshot#get(String, ValueCodec)}
+     */
+    public <T> T get(String key, @NotNull ValueCodec<T> codec) {
+        return snapshot().get(key, codec);
+    }
+
+    /**
+     * @return value decoded by the codec, {@code defaultValue} if there is no value or it cannot be decoded
+     */
+    public <T> T get(String key, @NotNull ValueCodec<T> codec, T defaultValue) {
+        try {
+            T value = snapshot().get(key, codec);
+            return value != null ? value : defaultValue;
+        } catch (LocalStorageException e) {
+            return defaultValue;
+        }
+    }
+
+
     public LocalStorage putAll(Map<String, String> map) {
-        data.putAll(map);
-        if (saveOnWrite) save();
+        importFrom(map);
+        saveOnWrite();
         return this;
     }
 
 
     public LocalStorage addMap(Map<String, String> map) {
-        data.putAll(map);
-        if (saveOnWrite) save();
+        importFrom(map);
+        saveOnWrite();
         return this;
     }
 
 
     public LocalStorage clear() {
-        data.clear();
-        if (saveOnWrite) save();
+        update(entries -> PersistentTreeMap.empty());
+        saveOnWrite();
         return this;
     }
 
@@ -195,7 +373,9 @@ abstract public class LocalStorage {
     @SneakyThrows
 
     public LocalStorage exportTo(Path filePath) {
-        Files.writeString(filePath, stringify(), StandardCharsets.UTF_8, CREATE, WRITE, TRUNCATE_EXISTING);
+        try (OutputStream outputStream = Files.newOutputStream(filePath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            BackupHelper.write(outputStream, null, snapshot());
+        }
         return this;
     }
 
@@ -213,90 +393,150 @@ abstract public class LocalStorage {
     }
 
 
+    /**
+     * Streams all entries of the current snapshot to the stream as {@code key=value} lines. Writers are never blocked
+     * and do not affect the backup. The stream is flushed, not closed.
+     *
+     * @return checkpoint to take incremental backups from with {@link #backupSince(String, OutputStream)}. Only the
+     * latest checkpoint is kept, it keeps the snapshot reachable until the next backup or
+     * {@link #releaseCheckpoint(String)}
+     */
+    public LocalStorageCheckpoint backup(@NotNull OutputStream outputStream) {
+        return backup(null, snapshot(), outputStream, null);
+    }
+
+    /**
+     * Writes the backup to a temporary file moved to {@code filePath} when complete, see {@link #backup(OutputStream)}
+     */
+    public LocalStorageCheckpoint backup(@NotNull Path filePath) {
+        return backup(null, snapshot(), null, filePath);
+    }
+
+    /**
+     * Streams only the changes made since the checkpoint, removed keys are written as {@code key=null}. Importing a
+     * full backup and then its incremental backups in order with {@link #importFrom(Path)} restores the storage.
+     *
+     * @return checkpoint of this backup, replacing the previous one
+     * @throws LocalStorageException if the checkpoint is unknown, released or not the latest one
+     */
+    public LocalStorageCheckpoint backupSince(@NotNull String checkpointId, @NotNull OutputStream outputStream) {
+        return backup(getCheckpoint(checkpointId), snapshot(), outputStream, null);
+    }
+
+    public LocalStorageCheckpoint backupSince(@NotNull String checkpointId, @NotNull Path filePath) {
+        return backup(getCheckpoint(checkpointId), snapshot(), null, filePath);
+    }
+
+    /**
+     * Forgets the checkpoint, letting the data it retains be collected
+     */
+    public void releaseCheckpoint(@NotNull String checkpointId) {
+        checkpoint.updateAndGet(latest -> latest != null && latest.getKey().equals(checkpointId) ? null : latest);
+    }
+
+    /**
+     * Loads many entries at once, overwriting existing keys, and saves the result. Entries are collected and sorted
+     * (only if they are not sorted already) without holding the writer lock, then merged with the current data into
+     * a new balanced tree in O(N + M) and published as one update. Indexes are rebuilt in bulk. Values are stored
+     * as strings, byte arrays as binary values.
+     */
+    public LocalStorage bulkLoad(@NotNull Map<String, ?> map) {
+        return bulkLoad(BulkLoadHelper.collect(map.entrySet().iterator(), map.size()));
+    }
+
+    /**
+     * @param entries entries in any order, for equal keys the last one wins, see {@link #bulkLoad(Map)}
+     */
+    public LocalStorage bulkLoad(@NotNull Stream<? extends Map.Entry<String, ?>> entries) {
+        return bulkLoad(BulkLoadHelper.collect(entries.iterator(), -1));
+    }
+
     public LocalStorage importFrom(@NotNull Map<String, String> importFrom) {
-        data.putAll(importFrom);
+        update(entries -> {
+            for (Map.Entry<String, String> entry : importFrom.entrySet()) {
+                entries = entries.put(entry.getKey(), Objects.requireNonNull(entry.getValue()));
+            }
+            return entries;
+        });
         return this;
     }
 
+    /**
+     * Applies the file, plain or gzip-compressed, in one update. Use {@link #merge()} for sources too large to
+     * hold parsed in memory or to resolve conflicts with existing keys
+     */
     @SneakyThrows
-
     public LocalStorage importFrom(Path filePath) {
-        Files.readAllLines(filePath).forEach(this::parseLine);
+        try (BufferedReader reader = LocalStorageMerge.openReader(Files.newInputStream(filePath))) {
+            applyLines(reader);
+        }
         return this;
     }
 
 
     public LocalStorage importGroupFrom(@NotNull Map<String, String> importFrom, String keyStartsWith) {
-        importFrom.forEach((k, v) -> {
-            if (k.startsWith(keyStartsWith)) data.put(k, v);
+        update(entries -> {
+            for (Map.Entry<String, String> entry : importFrom.entrySet()) {
+                if (entry.getKey().startsWith(keyStartsWith)) {
+                    entries = entries.put(entry.getKey(), Objects.requireNonNull(entry.getValue()));
+                }
+            }
+            return entries;
         });
         return this;
     }
 
     @SneakyThrows
-
     public LocalStorage importGroupFrom(Path filePath, String keyStartsWith) {
-        Files.readAllLines(filePath).forEach(line -> {
-            if (line.startsWith(keyStartsWith)) parseLine(line);
-        });
+        try (BufferedReader reader = LocalStorageMerge.openReader(Files.newInputStream(filePath))) {
+            applyLines(reader.lines().filter(line -> line.startsWith(keyStartsWith)).toList());
+        }
         return this;
     }
 
+    /**
+     * @return streaming merge of a {@code key=value} source into this storage with a conflict policy
+     */
+    public LocalStorageMerge merge() {
+        return new LocalStorageMerge(this);
+    }
+
 
     public LocalStorage remove(String key) {
-        data.remove(key);
+        update(entries -> entries.remove(key));
         return this;
     }
 
 
     public LocalStorage removeGroup(String keyStartsWith) {
-        toSortedMapGroup(keyStartsWith).forEach((k, v) -> remove(k));
+        update(entries -> {
+            PersistentTreeMap<Object> result = entries;
+            Iterator<Map.Entry<String, Object>> iterator = entries.iterator(keyStartsWith);
+            while (iterator.hasNext()) {
+                String key = iterator.next().getKey();
+                if (!key.startsWith(keyStartsWith)) break;
+                result = result.remove(key);
+            }
+            return result;
+        });
         return this;
     }
 
 
     public LocalStorage parseLine(@NotNull String line) {
-        if (line.trim().equals("")) return this;
-
-        if (line.trim().startsWith(DELIMITER))
-            throw new LocalStorageException("local store line starts with \"%s\": %s".formatted(DELIMITER, line));
-
-        if (!line.contains(DELIMITER))
-            throw new LocalStorageException("No \"%s\" in local storage line: %s".formatted(DELIMITER, line));
-
-        String[] split = line.split(DELIMITER, 2);
-        String key = split[0].trim();
-        String value = split[1].trim();
-
-        if (value.equals("null")) {
-            data.remove(key);
-            return this;
-        } else if (value.equals("\"\"")) {
-            value = "";
-        } else if (value.startsWith("\"") && value.endsWith("\"") && !value.equals("\"")) {
-            value = value.substring(1, value.length() - 1);
-        }
-
-        data.put(key, value);
+        applyLines(List.of(line));
         return this;
     }
 
 
     public String stringify() {
-        StringBuilder stringBuilder = new StringBuilder();
-        toSortedMap().forEach((key, value) -> stringBuilder
-                .append(key)
-                .append(DELIMITER)
-                .append(value)
-                .append('\n')
-        );
-        return stringBuilder.toString();
+        return stringify(snapshot());
     }
 
 
     public String stringifyGroup(String keyStartsWith) {
         StringBuilder stringBuilder = new StringBuilder();
-        toSortedMapGroup(keyStartsWith).forEach((key, value) -> stringBuilder
+        snapshot().forEachGroup(keyStartsWith, (key, value) -> stringBuilder
                 .append(key)
                 .append(DELIMITER)
                 .append(value)
@@ -307,25 +547,61 @@ abstract public class LocalStorage {
 
 
     public int getItemCount() {
-        return data.size();
+        return snapshot().getItemCount();
     }
 
+    /**
+     * @return live view of the keys starting with {@code prefix}, see {@link LocalStorageNamespace}
+     */
+    public LocalStorageNamespace namespace(@NotNull String prefix) {
+        return new LocalStorageNamespace(this, prefix);
+    }
 
-    public Map<String, String> toMap() {
-        return Map.copyOf(data);
+    /**
+     * @return consistent immutable view of the current data, taken in O(1)
+     */
+    public LocalStorageSnapshot snapshot() {
+        ensureOpen();
+        return snapshot;
+    }
+
+    /**
+     * @return lazy key-ordered scan of the current snapshot, narrowed by prefix, range, offset and limit
+     */
+    public LocalStorageScan scan() {
+        return snapshot().scan();
+    }
+
+
+    public Stream<Map.Entry<String, String>> stream() {
+        return snapshot().stream();
     }
 
 
+    public Stream<Map.Entry<String, String>> stream(String keyStartsWith) {
+        return snapshot().scan().keyStartsWith(keyStartsWith).stream();
+    }
+
+    /**
+     * @return unmodifiable view of the current snapshot
+     */
+    public Map<String, String> toMap() {
+        return snapshot().asMap();
+    }
+
+    /**
+     * @return unmodifiable view of the current snapshot, entries are sorted by key
+     */
     public Map<String, String> toSortedMap() {
-        return new TreeMap<>(toMap());
+        return snapshot().asMap();
     }
 
 
     public Map<String, String> toSortedMapGroup(String startsWith) {
+        LocalStorageMetrics.Sample sample = metrics.begin(this, LocalStorageMetrics.Operation.GROUP_QUERY);
         Map<String, String> map = new TreeMap<>();
-        toMap().forEach((k, v) -> {
-            if (k.startsWith(startsWith)) map.put(k, v);
-        });
+        snapshot().forEachGroup(startsWith, map::put);
+        sample.end(0, map.size());
         return map;
     }
 
@@ -337,7 +613,7 @@ abstract public class LocalStorage {
 
     public String toFormattedString(boolean decorated) {
         TextTable textTable = new TextTable(decorated, "Key", "Value");
-        toSortedMap().forEach(textTable::addRow);
+        snapshot().forEach(entry -> textTable.addRow(entry.getKey(), entry.getValue()));
         return textTable.render();
     }
 
@@ -349,7 +625,7 @@ abstract public class LocalStorage {
 
     public String toFormattedStringGroup(String keyStartsWith, boolean decorated) {
         TextTable textTable = new TextTable(decorated, "Key", "Value");
-        toSortedMapGroup(keyStartsWith).forEach(textTable::addRow);
+        snapshot().forEachGroup(keyStartsWith, textTable::addRow);
         return textTable.render();
     }
 
@@ -368,6 +644,379 @@ abstract public class LocalStorage {
         return storageId;
     }
 
+
+    public LocalStorageMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return counter incremented after every change of the data, used to skip saves which have nothing new to persist
+     */
+    protected long getModificationCount() {
+        return snapshot().getVersion();
+    }
+
+
+    public CompletableFuture<Void> saveAsync() {
+        return CompletableFuture.runAsync(this::save, executor);
+    }
+
+
+    public CompletableFuture<LocalStorage> loadAsync() {
+        return CompletableFuture.supplyAsync(this::load, executor);
+    }
+
+
+    public CompletableFuture<LocalStorage> deleteResourcesAsync() {
+        return CompletableFuture.supplyAsync(this::deleteResources, executor);
+    }
+
+
+    public CompletableFuture<LocalStorage> exportToAsync(Path filePath) {
+        return CompletableFuture.supplyAsync(() -> exportTo(filePath), executor);
+    }
+
+
+    public CompletableFuture<LocalStorage> exportGroupToAsync(Path filePath, String keyStartsWith) {
+        return CompletableFuture.supplyAsync(() -> exportGroupTo(filePath, keyStartsWith), executor);
+    }
+
+
+    public CompletableFuture<LocalStorageCheckpoint> backupAsync(Path filePath) {
+        return CompletableFuture.supplyAsync(() -> backup(filePath), executor);
+    }
+
+
+    public CompletableFuture<LocalStorageCheckpoint> backupSinceAsync(String checkpointId, Path filePath) {
+        return CompletableFuture.supplyAsync(() -> backupSince(checkpointId, filePath), executor);
+    }
+
+
+    public CompletableFuture<LocalStorage> importFromAsync(Path filePath) {
+        return CompletableFuture.supplyAsync(() -> importFrom(filePath), executor);
+    }
+
+
+    public CompletableFuture<LocalStorage> importGroupFromAsync(Path filePath, String keyStartsWith) {
+        return CompletableFuture.supplyAsync(() -> importGroupFrom(filePath, keyStartsWith), executor);
+    }
+
+    private LocalStorage bulkLoad(BulkLoadHelper.Batch batch) {
+        ensureOpen();
+        writeLock.lock();
+        try {
+            LocalStorageSnapshot current = snapshot;
+            PersistentTreeMap<Object> entries = BulkLoadHelper.merge(current.getEntries(), batch);
+            publish(new LocalStorageSnapshot(entries, current.getVersion() + 1,
+                    ValueIndex.rebuild(current.getIndexes(), entries)));
+        } finally {
+            writeLock.unlock();
+        }
+        save();
+        return this;
+    }
+
+    private LocalStorageSnapshot getCheckpoint(String checkpointId) {
+        Map.Entry<String, LocalStorageSnapshot> latest = checkpoint.get();
+        if (latest == null || !latest.getKey().equals(checkpointId)) {
+            throw new LocalStorageException("Unknown checkpoint " + checkpointId + ", only the latest one is kept");
+        }
+        return latest.getValue();
+    }
+
+    @SneakyThrows
+    private LocalStorageCheckpoint backup(LocalStorageSnapshot from,
+                                         LocalStorageSnapshot to,
+                                         OutputStream outputStream,
+                                         Path filePath) {
+
+        LocalStorageMetrics.Sample sample = metrics.begin(this, LocalStorageMetrics.Operation.BACKUP);
+        int count = outputStream != null
+                ? BackupHelper.write(outputStream, from, to)
+                : BackupHelper.write(filePath, from, to);
+        sample.end(filePath != null ? Files.size(filePath) : 0, count);
+
+        String checkpointId = UUID.randomUUID().toString();
+        checkpoint.set(Map.entry(checkpointId, to));
+        return new LocalStorageCheckpoint(checkpointId, to.getVersion(), count);
+    }
+
+    /**
+     * Saves through the {@link SavePipeline}, so concurrent writers share saves. Waits for the save unless
+     * {@link LocalStorageBuilder#writeBehind(boolean)} is set, a write then fails if the last background save failed
+     * and no save succeeded since
+     */
+    void saveOnWrite() {
+        if (saveOnWrite) {
+            LocalStorageMetrics.Sample sample = metrics.begin(this, LocalStorageMetrics.Operation.SAVE_ON_WRITE);
+            CompletableFuture<Void> saved = savePipeline.request(!writeBehind);
+            if (writeBehind) {
+                savePipeline.checkFailure();
+            } else {
+                join(saved);
+            }
+            sample.end(0, getItemCount());
+        }
+    }
+
+    /**
+     * Waits until every write made before the call is saved. Concurrent calls and writes share saves, see
+     * {@link LocalStorageBuilder#writeBehind(boolean)}
+     */
+    public void flush() {
+        join(savePipeline.request(true));
+    }
+
+    /**
+     * @see #flush()
+     */
+    public CompletableFuture<Void> flushAsync() {
+        return savePipeline.request(false);
+    }
+
+    @SneakyThrows
+    private static void join(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw e.getCause();
+        }
+    }
+
+    protected String stringify(@NotNull LocalStorageSnapshot snapshot) {
+        StringBuilder stringBuilder = new StringBuilder();
+        snapshot.forEach(entry -> stringBuilder
+                .append(entry.getKey())
+                .append(DELIMITER)
+                .append(entry.getValue())
+                .append('\n')
+        );
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Parses all lines before applying them, so a malformed line leaves the data untouched and readers never see
+     * a partially applied source
+     */
+    void applyLines(@NotNull List<String> lines) {
+        List<String[]> parsed = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            String[] entry = parseEntry(line);
+            if (entry != null) parsed.add(entry);
+        }
+        applyEntries(parsed);
+    }
+
+    /**
+     * Reads lines one by one, so the source text is not buffered, but all parsed entries are kept until they are
+     * applied at once, see {@link #applyLines(List)}. Memory still grows with the number of entries of the source
+     */
+    void applyLines(@NotNull BufferedReader reader) throws IOException {
+        List<String[]> parsed = new ArrayList<>();
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String[] entry = parseEntry(line);
+            if (entry != null) parsed.add(entry);
+        }
+        applyEntries(parsed);
+    }
+
+    private void applyEntries(List<String[]> parsed) {
+        if (parsed.isEmpty()) return;
+
+        update(entries -> {
+            for (String[] entry : parsed) {
+                entries = entry[1] == null
+                        ? entries.remove(entry[0])
+                        : entries.put(entry[0], BinaryFormatHelper.fromText(entry[1]));
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * @return key and value of the line, value is {@code null} for {@code key=null} lines. {@code null} for blank lines
+     */
+    static String[] parseEntry(@NotNull String line) {
+        if (line.trim().equals("")) return null;
+
+        if (line.trim().startsWith(DELIMITER))
+            throw new LocalStorageException("local store line starts with \"%s\": %s".formatted(DELIMITER, line));
+
+        if (!line.contains(DELIMITER))
+            throw new LocalStorageException("No \"%s\" in local storage line: %s".formatted(DELIMITER, line));
+
+        String[] split = line.split(DELIMITER, 2);
+        String key = split[0].trim();
+        String value = split[1].trim();
+
+        if (value.equals("null")) {
+            value = null;
+        } else if (value.equals("\"\"")) {
+            value = "";
+        } else if (value.startsWith("\"") && value.endsWith("\"") && !value.equals("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+
+        return new String[]{key, value};
+    }
+
+    /**
+     * Applies the update atomically. Writers are serialized, readers never wait and see either none or all changes
+     * of an update
+     */
+    LocalStorageSnapshot update(@NotNull UnaryOperator<PersistentTreeMap<Object>> update) {
+        ensureOpen();
+        writeLock.lock();
+        try {
+            LocalStorageSnapshot current = snapshot;
+            PersistentTreeMap<Object> entries = update.apply(current.getEntries());
+            if (entries == current.getEntries()) return current;
+
+            LocalStorageSnapshot updated = new LocalStorageSnapshot(entries, current.getVersion() + 1,
+                    ValueIndex.update(current.getIndexes(), current.getEntries(), entries));
+            publish(updated);
+            return updated;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called under the writer lock
+     */
+    private void publish(LocalStorageSnapshot updated) {
+        snapshot = updated;
+        for (Consumer<LocalStorageSnapshot> listener : updateListeners) {
+            listener.accept(updated);
+        }
+    }
+
+    /**
+     * Releases this reference to a storage built with {@link LocalStorageBuilder#shared(boolean)}, must be called on
+     * the thread that built the reference. Calling it more often than the thread built references does nothing. Does
+     * nothing for not shared storages. Data is not saved on close.
+     * <p>
+     * Once the last reference is closed, or on every close of a not shared storage, resources kept open by the storage
+     * are closed, see {@link #closeResources()}. The data stays usable.
+     */
+    @Override
+    public void close() {
+        if (LocalStorageRegistry.release(this)) closeResources();
+    }
+
+    /**
+     * @param listener receives every new version of the data. Called under the writer lock, so it must only hand the
+     *                 snapshot over and return
+     */
+    void addUpdateListener(@NotNull Consumer<LocalStorageSnapshot> listener) {
+        updateListeners.add(listener);
+    }
+
+    void removeUpdateListener(@NotNull Consumer<LocalStorageSnapshot> listener) {
+        updateListeners.remove(listener);
+    }
+
+    Path getRegistryKey() {
+        return registryKey;
+    }
+
+    void setRegistryKey(Path registryKey) {
+        this.registryKey = registryKey;
+    }
+
+    /**
+     * Called once by {@link LocalStorageBuilder} after the instance is created, loads existing data if any. With
+     * {@link LocalStorageBuilder#lazyOpen(boolean)} it is called on first access instead
+     */
+    protected void open() {
+    }
+
+    /**
+     * Called by {@link #close()} once the storage is no longer referenced, closes files the storage keeps open
+     */
+    protected void closeResources() {
+    }
+
+    /**
+     * Defers {@link #open()} until the first access
+     */
+    void openLazily() {
+        openPending = true;
+    }
+
+    /**
+     * Opens a storage built with {@link LocalStorageBuilder#lazyOpen(boolean)} exactly once, concurrent callers wait
+     * for it. Reentrant calls made by {@link #open()} itself pass through
+     */
+    void ensureOpen() {
+        if (openPending && !openLock.isHeldByCurrentThread()) {
+            openLock.lock();
+            try {
+                if (openPending) {
+                    open();
+                    openPending = false;
+                }
+            } finally {
+                openLock.unlock();
+            }
+        }
+    }
+
+    private class DataView extends AbstractMap<String, String> {
+
+        @Override
+        public int size() {
+            return getItemCount();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return snapshot().asMap().containsKey(key);
+        }
+
+        @Override
+        public String get(Object key) {
+            return snapshot().asMap().get(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            Objects.requireNonNull(value);
+            String[] previous = new String[1];
+            update(entries -> {
+                previous[0] = BinaryFormatHelper.toText(entries.get(key));
+                return entries.put(key, value);
+            });
+            return previous[0];
+        }
+
+        @Override
+        public String remove(Object key) {
+            if (!(key instanceof String string)) return null;
+            String[] previous = new String[1];
+            update(entries -> {
+                previous[0] = BinaryFormatHelper.toText(entries.get(string));
+                return entries.remove(string);
+            });
+            return previous[0];
+        }
+
+        @Override
+        public void clear() {
+            update(entries -> PersistentTreeMap.empty());
+        }
+
+        @Override
+        public @NotNull Set<Entry<String, String>> entrySet() {
+            return snapshot().asMap().entrySet();
+        }
+    }
+
     abstract public void save();
     abstract public LocalStorage load();
     abstract public LocalStorage deleteResources();
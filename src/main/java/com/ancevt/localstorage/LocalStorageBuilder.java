@@ -17,15 +17,38 @@
  */
 package com.ancevt.localstorage;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class LocalStorageBuilder {
 
+    private static final Map<Class<? extends LocalStorage>, LocalStorageProvider> PROVIDERS = Map.of(
+            FileLocalStorage.class, FileLocalStorage::new,
+            EncryptedFileLocalStorage.class, EncryptedFileLocalStorage::new
+    );
+
     private final Class<? extends LocalStorage> type;
+    private final LocalStorageProvider provider;
     private final String filename;
     private boolean saveOnWrite = false;
     private String storageId = LocalStorage.class.getName();
     private String directoryPath = null;
+    private LocalStorageMetrics metrics = LocalStorageMetrics.NOOP;
+    private Executor executor = null;
+    private boolean shared = false;
+    private LocalStorageFormat format = LocalStorageFormat.TEXT;
+    private final Set<String> indexedKeyPrefixes = new LinkedHashSet<>();
+    private LocalStorageEncryption encryption = LocalStorageEncryption.FILE;
+    private LocalStorageKeyType keyType = LocalStorageKeyType.RSA;
+    private boolean writeBehind = false;
+    private boolean compress = false;
+    private boolean recover = false;
+    private boolean lazyOpen = false;
+    private boolean preload = false;
 
     /**
      * @param type values: {@link EncryptedFileLocalStorage}.class or {@link FileLocalStorage}.class
@@ -34,6 +57,17 @@ public class LocalStorageBuilder {
     public LocalStorageBuilder(String filename, Class<? extends LocalStorage> type) {
         this.type = type;
         this.filename = filename;
+        this.provider = PROVIDERS.getOrDefault(type, reflectiveProvider(type));
+    }
+
+    /**
+     * @param provider factory creating the storage instance, e.g. {@code FileLocalStorage::new} style constructor
+     *                 references of custom storages
+     */
+    public LocalStorageBuilder(String filename, LocalStorageProvider provider) {
+        this.type = null;
+        this.filename = filename;
+        this.provider = provider;
     }
 
     public LocalStorageBuilder directoryPath(String directoryPath) {
@@ -51,19 +85,168 @@ public class LocalStorageBuilder {
         return this;
     }
 
+    /**
+     * @param metrics receiver of operation timings, e.g. {@link JfrLocalStorageMetrics}. {@code null} disables metrics
+     */
+    public LocalStorageBuilder metrics(LocalStorageMetrics metrics) {
+        this.metrics = metrics != null ? metrics : LocalStorageMetrics.NOOP;
+        return this;
+    }
+
+    /**
+     * @param executor executor running the {@code *Async} operations. By default virtual threads are used on Java 21+
+     *                 and a shared cached pool of daemon threads otherwise
+     */
+    public LocalStorageBuilder executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @param shared when {@code true}, all shared builds pointing to the same file return one instance, which is loaded
+     *               only once. Settings of the builder that created the instance are kept. Each built reference should
+     *               be released with {@link LocalStorage#close()} on the thread that built it
+     */
+    public LocalStorageBuilder shared(boolean shared) {
+        this.shared = shared;
+        return this;
+    }
+
+    /**
+     * @param format file format used by file storages to save data, {@link LocalStorageFormat#TEXT} by default
+     */
+    public LocalStorageBuilder format(LocalStorageFormat format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Declares a value index built during the initial load, see {@link LocalStorage#createIndex(String)}
+     */
+    public LocalStorageBuilder index(String keyPrefix) {
+        indexedKeyPrefixes.add(keyPrefix);
+        return this;
+    }
+
+    /**
+     * @param encryption how {@link EncryptedFileLocalStorage} encrypts data, {@link LocalStorageEncryption#FILE} by
+     *                   default
+     */
+    public LocalStorageBuilder encryption(LocalStorageEncryption encryption) {
+        this.encryption = encryption;
+        return this;
+    }
+
+    /**
+     * @param keyType type of the key pair generated by {@link EncryptedFileLocalStorage},
+     *                {@link LocalStorageKeyType#RSA} by default. An existing pair of another type keeps being used until
+     *                the keys are rotated, see {@link EncryptedFileLocalStorage#rotateKeys()}
+     */
+    public LocalStorageBuilder keyType(LocalStorageKeyType keyType) {
+        this.keyType = keyType;
+        return this;
+    }
+
+    /**
+     * @param writeBehind with {@link #saveOnWrite(boolean)}, writes return without waiting for the save. Saves run on
+     *                    the executor and concurrent writes share them, {@link LocalStorage#flush()} waits for them.
+     *                    A failed save is thrown by the following writes until a save succeeds. Off by default,
+     *                    writes return once saved
+     */
+    public LocalStorageBuilder writeBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+        return this;
+    }
+
+    /**
+     * @param compress whether file storages compress the storage file with gzip, off by default. Existing files are
+     *                 read either way
+     */
+    public LocalStorageBuilder compress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * @param recover whether file storages opened with a damaged file load the intact records and report the damaged
+     *                ones in {@link FileLocalStorage#getOpenRecovery()}, see {@link FileLocalStorage#recover()}. Off by
+     *                default, a damaged file is then not loaded at all
+     */
+    public LocalStorageBuilder recover(boolean recover) {
+        this.recover = recover;
+        return this;
+    }
+
+    /**
+     * @param lazyOpen whether existing data is loaded on first access of the storage instead of by {@link #build()}.
+     *                 Concurrent first accesses wait for a single load
+     */
+    public LocalStorageBuilder lazyOpen(boolean lazyOpen) {
+        this.lazyOpen = lazyOpen;
+        return this;
+    }
+
+    /**
+     * @param preload with {@link #lazyOpen(boolean)}, loads the storage in the background on a shared low priority
+     *                thread, an access before it finishes waits for it
+     */
+    public LocalStorageBuilder preload(boolean preload) {
+        this.preload = preload;
+        return this;
+    }
+
     public LocalStorage build() {
-        try {
-            return (LocalStorage) type.getDeclaredConstructors()[0].newInstance(
-                    filename,
-                    saveOnWrite,
-                    storageId,
-                    directoryPath
-            );
-        } catch (IllegalAccessException |
-                InstantiationException |
-                InvocationTargetException e) {
-            throw new LocalStorageException(e);
+        LocalStorageConfig config = new LocalStorageConfig(
+                filename,
+                saveOnWrite,
+                storageId,
+                directoryPath,
+                metrics,
+                executor != null ? executor : ExecutorHelper.defaultExecutor(),
+                format,
+                DirectoryHelper.getFilePath(storageId, directoryPath, filename),
+                Set.copyOf(indexedKeyPrefixes),
+                encryption,
+                keyType,
+                writeBehind,
+                compress,
+                recover
+        );
+
+        if (shared) {
+            return LocalStorageRegistry.acquire(config.filePath(), type, () -> create(config));
+        }
+        return create(config);
+    }
+
+    private LocalStorage create(LocalStorageConfig config) {
+        LocalStorage localStorage = provider.create(config);
+        if (lazyOpen) {
+            localStorage.openLazily();
+            if (preload) ExecutorHelper.preloadExecutor().execute(localStorage::ensureOpen);
+        } else {
+            localStorage.open();
         }
+        return localStorage;
+    }
+
+    /**
+     * Fallback for storage types without a registered provider, they must declare a {@link LocalStorageConfig}
+     * constructor
+     */
+    private static LocalStorageProvider reflectiveProvider(Class<? extends LocalStorage> type) {
+        return config -> {
+            try {
+                Constructor<? extends LocalStorage> constructor = type.getDeclaredConstructor(LocalStorageConfig.class);
+                constructor.setAccessible(true);
+                return constructor.newInstance(config);
+            } catch (NoSuchMethodException |
+                    IllegalAccessException |
+                    InstantiationException |
+                    InvocationTargetException e) {
+                throw new LocalStorageException(e);
+            }
+        };
     }
 
 }
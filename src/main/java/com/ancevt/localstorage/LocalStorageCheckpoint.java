@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+/**
+ * Point a backup was taken at, see {@link LocalStorage#backup(java.io.OutputStream)}
+ *
+ * @param id        identifier to pass to {@link LocalStorage#backupSince(String, java.io.OutputStream)}
+ * @param version   modification count of the storage the backup reflects
+ * @param itemCount number of lines written, entries for a full backup and changes for an incremental one
+ */
+public record LocalStorageCheckpoint(String id, long version, int itemCount) {
+}
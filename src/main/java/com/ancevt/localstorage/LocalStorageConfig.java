@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Settings collected by {@link LocalStorageBuilder} and passed to a {@link LocalStorageProvider}
+ *
+ * @param filePath           storage file path resolved once from the storage id, directory path and filename
+ * @param indexedKeyPrefixes key prefixes to create value indexes for, see {@link LocalStorage#createIndex(String)}
+ * @param encryption         how {@link EncryptedFileLocalStorage} encrypts data
+ * @param keyType            type of the key pair generated by {@link EncryptedFileLocalStorage}
+ * @param writeBehind        whether writes return before {@code saveOnWrite} has saved them
+ * @param compress           whether file storages compress the storage file with gzip
+ * @param recover            whether file storages skip damaged records when opened instead of loading nothing
+ */
+public record LocalStorageConfig(@NotNull String filename,
+                                 boolean saveOnWrite,
+                                 String storageId,
+                                 String directoryPath,
+                                 @NotNull LocalStorageMetrics metrics,
+                                 @NotNull Executor executor,
+                                 @NotNull LocalStorageFormat format,
+                                 @NotNull Path filePath,
+                                 @NotNull Set<String> indexedKeyPrefixes,
+                                 @NotNull LocalStorageEncryption encryption,
+                                 @NotNull LocalStorageKeyType keyType,
+                                 boolean writeBehind,
+                                 boolean compress,
+                                 boolean recover) {
+
+    static @NotNull LocalStorageConfig of(@NotNull String filename,
+                                          boolean saveOnWrite,
+                                          String storageId,
+                                          String directoryPath) {
+        return new LocalStorageConfig(
+                filename,
+                saveOnWrite,
+                storageId,
+                directoryPath,
+                LocalStorageMetrics.NOOP,
+                ExecutorHelper.defaultExecutor(),
+                LocalStorageFormat.TEXT,
+                DirectoryHelper.getFilePath(storageId, directoryPath, filename),
+                Set.of(),
+                LocalStorageEncryption.FILE,
+                LocalStorageKeyType.RSA,
+                false,
+                false,
+                false
+        );
+    }
+}
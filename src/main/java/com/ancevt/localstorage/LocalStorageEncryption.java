@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+/**
+ * How {@link EncryptedFileLocalStorage} encrypts data. Loading detects the layout of the file by itself.
+ */
+public enum LocalStorageEncryption {
+
+    /**
+     * The file is encrypted as one stream, every save encrypts and every load decrypts all entries
+     */
+    FILE,
+
+    /**
+     * Each value is encrypted on its own. Values are decrypted on first read and a save encrypts only values written
+     * since the previous save. Keys are stored in plain text
+     */
+    VALUES,
+
+    /**
+     * As {@link #VALUES}, keys are encrypted as well. Key encryption is deterministic, equal keys have equal ciphertext
+     */
+    KEYS_AND_VALUES
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+/**
+ * File format used by {@link FileLocalStorage} to save data. Loading detects the format of the file by itself.
+ */
+public enum LocalStorageFormat {
+
+    /**
+     * {@code key=value} lines, binary values are escaped with Base64
+     */
+    TEXT,
+
+    /**
+     * Length-prefixed records, binary values are stored as raw bytes
+     */
+    BINARY
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+/**
+ * Type of the key pair of {@link EncryptedFileLocalStorage}. The pair only encrypts the data keys, the data itself is
+ * encrypted with AES either way.
+ */
+public enum LocalStorageKeyType {
+
+    /**
+     * RSA-2048 with OAEP, generating a pair takes a noticeable fraction of a second
+     */
+    RSA("RSA", "rsa"),
+
+    /**
+     * X25519 key agreement with AES key wrap, a pair is generated in well under a millisecond
+     */
+    X25519("X25519", "x25519");
+
+    final String algorithm;
+    final String extension;
+
+    LocalStorageKeyType(String algorithm, String extension) {
+        this.algorithm = algorithm;
+        this.extension = extension;
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming merge of {@code key=value} lines, plain or gzip-compressed, into a live storage. The source is read and
+ * applied in batches, so memory used by the merge does not depend on the size of the source, and each batch is one
+ * atomic update resolved against the data current at that moment. Writers of the storage interleave with batches.
+ * <pre>{@code
+ * localStorage.merge()
+ *         .conflictPolicy(LocalStorageMerge.ConflictPolicy.newestWins(value -> Long.parseLong(value.split(";")[0])))
+ *         .progress(progress -> log.info("{} of {} bytes", progress.bytesRead(), progress.totalBytes()))
+ *         .from(Path.of("export.txt.gz"));
+ * }</pre>
+ * Unlike {@link LocalStorage#importFrom(Path)} a malformed line fails the merge after the preceding batches are
+ * applied. The storage is not saved by the merge.
+ */
+public class LocalStorageMerge {
+
+    private static final int DEFAULT_BATCH_SIZE = 10_000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final LocalStorage localStorage;
+    private ConflictPolicy conflictPolicy = ConflictPolicy.OVERWRITE;
+    private String keyStartsWith;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private Consumer<Progress> progress;
+
+    LocalStorageMerge(@NotNull LocalStorage localStorage) {
+        this.localStorage = localStorage;
+    }
+
+    /**
+     * @param conflictPolicy decides the value of keys present both in the storage and in the source,
+     *                       {@link ConflictPolicy#OVERWRITE} by default
+     */
+    public LocalStorageMerge conflictPolicy(@NotNull ConflictPolicy conflictPolicy) {
+        this.conflictPolicy = conflictPolicy;
+        return this;
+    }
+
+    /**
+     * @param keyStartsWith only lines of keys with the prefix are merged
+     */
+    public LocalStorageMerge keyStartsWith(String keyStartsWith) {
+        this.keyStartsWith = keyStartsWith;
+        return this;
+    }
+
+    /**
+     * @param batchSize entries applied per update, bounds memory used by the merge
+     */
+    public LocalStorageMerge batchSize(int batchSize) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize <= 0: " + batchSize);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param progress called on the merging thread after every batch
+     */
+    public LocalStorageMerge progress(Consumer<Progress> progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * @return progress of the completed merge
+     */
+    public Progress from(@NotNull Path filePath) {
+        try (InputStream inputStream = Files.newInputStream(filePath)) {
+            return merge(inputStream, Files.size(filePath));
+        } catch (IOException e) {
+            throw new LocalStorageException("Unable to merge " + filePath + " into local storage " + localStorage.getFilename(), e);
+        }
+    }
+
+    /**
+     * Reads the stream to the end, the stream is not closed
+     */
+    public Progress from(@NotNull InputStream inputStream) {
+        try {
+            return merge(inputStream, -1);
+        } catch (IOException e) {
+            throw new LocalStorageException("Unable to merge into local storage " + localStorage.getFilename(), e);
+        }
+    }
+
+    public CompletableFuture<Progress> fromAsync(@NotNull Path filePath) {
+        return CompletableFuture.supplyAsync(() -> from(filePath), localStorage.getExecutor());
+    }
+
+    /**
+     * @return reader of the stream decompressing it if it starts with the gzip magic number
+     */
+    static @NotNull BufferedReader openReader(@NotNull InputStream inputStream) throws IOException {
+        InputStream bufferedStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
+        bufferedStream.mark(2);
+        int first = bufferedStream.read();
+        int second = bufferedStream.read();
+        bufferedStream.reset();
+        if (first == (GZIPInputStream.GZIP_MAGIC & 0xFF) && second == GZIPInputStream.GZIP_MAGIC >>> 8) {
+            bufferedStream = new GZIPInputStream(bufferedStream, BUFFER_SIZE);
+        }
+        return new BufferedReader(new InputStreamReader(bufferedStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private Progress merge(InputStream inputStream, long totalBytes) throws IOException {
+        CountingInputStream countingStream = new CountingInputStream(inputStream);
+        BufferedReader reader = openReader(countingStream);
+        LocalStorageMetrics.Sample sample = localStorage.getMetrics().begin(localStorage, LocalStorageMetrics.Operation.MERGE);
+
+        Counters counters = new Counters();
+        List<String[]> batch = new ArrayList<>(batchSize);
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String[] entry = LocalStorage.parseEntry(line);
+            if (entry == null) continue;
+            counters.entriesRead++;
+            if (keyStartsWith != null && !entry[0].startsWith(keyStartsWith)) continue;
+
+            batch.add(entry);
+            if (batch.size() == batchSize) apply(batch, counters, countingStream.count, totalBytes);
+        }
+        Progress result = apply(batch, counters, countingStream.count, totalBytes);
+
+        sample.end(result.bytesRead(), (int) Math.min(result.entriesWritten(), Integer.MAX_VALUE));
+        return result;
+    }
+
+    private Progress apply(List<String[]> batch, Counters counters, long bytesRead, long totalBytes) {
+        if (!batch.isEmpty()) {
+            localStorage.update(entries -> {
+                for (String[] entry : batch) {
+                    String key = entry[0];
+                    String value = entry[1];
+                    Object existing = entries.get(key);
+                    if (existing != null) {
+                        counters.conflicts++;
+                        String existingText = BinaryFormatHelper.toEscapedText(existing);
+                        value = conflictPolicy.resolve(key, existingText, value);
+                        if (Objects.equals(value, existingText)) continue;
+                    } else if (value == null) {
+                        continue;
+                    }
+                    entries = value == null ? entries.remove(key) : entries.put(key, BinaryFormatHelper.fromText(value));
+                    counters.entriesWritten++;
+                }
+                return entries;
+            });
+            batch.clear();
+        }
+
+        Progress current = new Progress(bytesRead, totalBytes, counters.entriesRead, counters.entriesWritten, counters.conflicts);
+        if (progress != null) progress.accept(current);
+        return current;
+    }
+
+    /**
+     * Resolves a key present both in the storage and in the source. Values are in text form, binary values escaped
+     * as in {@link LocalStorage#exportTo(Path)}
+     */
+    @FunctionalInterface
+    public interface ConflictPolicy {
+
+        ConflictPolicy OVERWRITE = (key, existing, incoming) -> incoming;
+
+        ConflictPolicy KEEP_EXISTING = (key, existing, incoming) -> existing;
+
+        /**
+         * @param timestamp extracts the timestamp of a value, the value with the greater one is kept, the incoming on
+         *                  ties. Removals in the source carry no timestamp and never replace an existing value
+         */
+        static ConflictPolicy newestWins(@NotNull ToLongFunction<String> timestamp) {
+            return (key, existing, incoming) -> incoming != null
+                    && timestamp.applyAsLong(incoming) >= timestamp.applyAsLong(existing) ? incoming : existing;
+        }
+
+        /**
+         * @param incoming value of the source, {@code null} for {@code key=null} lines
+         * @return value to store, {@code null} removes the key
+         */
+        String resolve(@NotNull String key, @NotNull String existing, String incoming);
+    }
+
+    /**
+     * @param bytesRead      bytes of the source read so far, compressed size for gzip sources
+     * @param totalBytes     size of the source, -1 if unknown
+     * @param entriesRead    entries parsed so far
+     * @param entriesWritten entries put or removed in the storage
+     * @param conflicts      keys of the source already present in the storage
+     */
+    public record Progress(long bytesRead, long totalBytes, long entriesRead, long entriesWritten, long conflicts) {
+    }
+
+    private static class Counters {
+        private long entriesRead;
+        private long entriesWritten;
+        private long conflicts;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte @NotNull [] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
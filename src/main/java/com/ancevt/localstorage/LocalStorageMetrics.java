@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives timings and sizes of storage operations. Set it with
+ * {@link LocalStorageBuilder#metrics(LocalStorageMetrics)}, {@link #NOOP} is used by default.
+ */
+public interface LocalStorageMetrics {
+
+    LocalStorageMetrics NOOP = (localStorage, operation) -> Sample.NOOP;
+
+    enum Operation {
+        SAVE,
+        LOAD,
+        ENCRYPT,
+        DECRYPT,
+        GROUP_QUERY,
+        SAVE_ON_WRITE,
+        BACKUP,
+        MERGE
+    }
+
+    /**
+     * Called right before the operation starts. The returned sample is ended when the operation completes.
+     */
+    @NotNull Sample begin(@NotNull LocalStorage localStorage, @NotNull Operation operation);
+
+    interface Sample {
+
+        Sample NOOP = (bytes, entries) -> {
+        };
+
+        /**
+         * @param bytes   bytes written or read by the operation, 0 if not applicable
+         * @param entries entry count the operation worked with, 0 if not applicable
+         */
+        void end(long bytes, int entries);
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import lombok.SneakyThrows;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Live view of the keys of a storage starting with a prefix, created by {@link LocalStorage#namespace(String)}.
+ * Keys passed to and returned by the view are relative to the prefix. The view has no state of its own: every call
+ * works on the prefix range of the current snapshot of the storage, so counting is O(log N) and clearing, copying or
+ * exporting the namespace costs its size rather than the size of the storage.
+ * <pre>{@code
+ * LocalStorageNamespace plugin = localStorage.namespace("plugin.x.");
+ * plugin.put("enabled", true);   // stores "plugin.x.enabled"
+ * plugin.clear();                // removes only "plugin.x.*"
+ * }</pre>
+ */
+public final class LocalStorageNamespace {
+
+    private final LocalStorage localStorage;
+    private final String prefix;
+
+    LocalStorageNamespace(@NotNull LocalStorage localStorage, @NotNull String prefix) {
+        this.localStorage = localStorage;
+        this.prefix = prefix;
+    }
+
+    public @NotNull LocalStorage getLocalStorage() {
+        return localStorage;
+    }
+
+    public @NotNull String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return nested namespace, its prefix is the prefix of this one followed by {@code prefix}
+     */
+    public @NotNull LocalStorageNamespace namespace(@NotNull String prefix) {
+        return new LocalStorageNamespace(localStorage, this.prefix + prefix);
+    }
+
+    public boolean contains(String key) {
+        return localStorage.contains(prefix + key);
+    }
+
+    public String getString(String key) {
+        return localStorage.getString(prefix + key);
+    }
+
+    public String getString(String key, String defaultValue) {
+        return localStorage.getString(prefix + key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return localStorage.getInt(prefix + key, defaultValue);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        return localStorage.getLong(prefix + key, defaultValue);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return localStorage.getBoolean(prefix + key, defaultValue);
+    }
+
+    public byte getByte(String key, byte defaultValue) {
+        return localStorage.getByte(prefix + key, defaultValue);
+    }
+
+    public short getShort(String key, short defaultValue) {
+        return localStorage.getShort(prefix + key, defaultValue);
+    }
+
+    public char getChar(String key, char defaultValue) {
+        return localStorage.getChar(prefix + key, defaultValue);
+    }
+
+    public float getFloat(String key, float defaultValue) {
+        return localStorage.getFloat(prefix + key, defaultValue);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        return localStorage.getDouble(prefix + key, defaultValue);
+    }
+
+    public byte[] getBytes(String key) {
+        return localStorage.getBytes(prefix + key);
+    }
+
+    public ByteBuffer getByteBuffer(String key) {
+        return localStorage.getByteBuffer(prefix + key);
+    }
+
+    public <T> T get(String key, @NotNull ValueCodec<T> codec) {
+        return localStorage.get(prefix + key, codec);
+    }
+
+    public <T> T get(String key, @NotNull ValueCodec<T> codec, T defaultValue) {
+        return localStorage.get(prefix + key, codec, defaultValue);
+    }
+
+    public LocalStorageNamespace put(String key, Object value) {
+        localStorage.put(prefix + key, value);
+        return this;
+    }
+
+    public <T> LocalStorageNamespace put(String key, @NotNull T value, @NotNull ValueCodec<T> codec) {
+        localStorage.put(prefix + key, value, codec);
+        return this;
+    }
+
+    public LocalStorageNamespace putBytes(String key, byte @NotNull [] value) {
+        localStorage.putBytes(prefix + key, value);
+        return this;
+    }
+
+    /**
+     * Puts all entries in one update, keys of the map are relative to the prefix
+     */
+    public LocalStorageNamespace putAll(@NotNull Map<String, String> map) {
+        localStorage.update(entries -> {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                entries = entries.put(prefix + entry.getKey(), Objects.requireNonNull(entry.getValue()));
+            }
+            return entries;
+        });
+        localStorage.saveOnWrite();
+        return this;
+    }
+
+    public LocalStorageNamespace remove(String key) {
+        localStorage.remove(prefix + key);
+        return this;
+    }
+
+    /**
+     * Removes all keys of the namespace in one update, visiting only them
+     */
+    public LocalStorageNamespace clear() {
+        localStorage.removeGroup(prefix);
+        localStorage.saveOnWrite();
+        return this;
+    }
+
+    /**
+     * @return number of keys in the namespace, computed in O(log N)
+     */
+    public int getItemCount() {
+        return localStorage.snapshot().scan().keyStartsWith(prefix).count();
+    }
+
+    public boolean isEmpty() {
+        return getItemCount() == 0;
+    }
+
+    /**
+     * @return lazy key-ordered stream of the namespace entries with relative keys
+     */
+    public Stream<Map.Entry<String, String>> stream() {
+        return localStorage.snapshot().scan().keyStartsWith(prefix).stream().map(this::toRelative);
+    }
+
+    /**
+     * @return copy of the namespace entries with relative keys, sorted by key
+     */
+    public Map<String, String> toSortedMap() {
+        Map<String, String> map = new TreeMap<>();
+        forEach(map::put);
+        return map;
+    }
+
+    public LocalStorageNamespace exportTo(@NotNull Map<String, String> exportTo) {
+        forEach(exportTo::put);
+        return this;
+    }
+
+    /**
+     * Streams the namespace entries with relative keys as {@code key=value} lines, the file can be imported into any
+     * namespace with {@link #importFrom(Path)}
+     */
+    @SneakyThrows
+    public LocalStorageNamespace exportTo(Path filePath) {
+        try (Writer writer = Files.newBufferedWriter(filePath, StandardCharsets.UTF_8, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            forEach((key, value) -> writeLine(writer, key, value));
+        }
+        return this;
+    }
+
+    /**
+     * Imports {@code key=value} lines with keys relative to the prefix in one update
+     */
+    @SneakyThrows
+    public LocalStorageNamespace importFrom(Path filePath) {
+        try (BufferedReader reader = LocalStorageMerge.openReader(Files.newInputStream(filePath))) {
+            localStorage.applyLines(reader.lines()
+                    .filter(line -> !line.isBlank())
+                    .map(line -> prefix + line)
+                    .toList());
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalStorageNamespace{prefix='" + prefix + "', localStorage=" + localStorage.getStorageId() + "}";
+    }
+
+    private void forEach(BiConsumer<String, String> action) {
+        localStorage.snapshot().forEachGroup(prefix, (key, value) -> action.accept(key.substring(prefix.length()), value));
+    }
+
+    private Map.Entry<String, String> toRelative(Map.Entry<String, String> entry) {
+        return new AbstractMap.SimpleImmutableEntry<>(entry.getKey().substring(prefix.length()), entry.getValue());
+    }
+
+    @SneakyThrows
+    private static void writeLine(Writer writer, String key, String value) {
+        writer.write(key);
+        writer.write(LocalStorage.DELIMITER);
+        writer.write(value);
+        writer.write('\n');
+    }
+}
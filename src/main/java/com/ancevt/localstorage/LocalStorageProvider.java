@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Creates storage instances for {@link LocalStorageBuilder}. The builder calls {@link LocalStorage#open()} on the
+ * created instance, right away or on first access, so providers should not load data themselves.
+ */
+@FunctionalInterface
+public interface LocalStorageProvider {
+
+    @NotNull LocalStorage create(@NotNull LocalStorageConfig config);
+}
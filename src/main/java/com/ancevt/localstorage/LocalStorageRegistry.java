@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Keeps one loaded instance per storage file for storages built with {@link LocalStorageBuilder#shared(boolean)}.
+ * Every {@link #acquire} must be paired with a {@link LocalStorage#close()} on the same thread, the instance is
+ * forgotten when the last reference is closed. References are counted per acquiring thread, so closing more often than
+ * the thread acquired is a no-op and can not release references held by other threads.
+ */
+class LocalStorageRegistry {
+
+    /**
+     * Guards only the bookkeeping, instances are created and loaded outside the lock, so opening one file never
+     * waits for another file to be loaded
+     */
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private static final Map<Path, Registration> registrations = new HashMap<>();
+
+    /**
+     * @param type expected storage type, {@code null} if it is not known before the instance is created
+     */
+    static @NotNull LocalStorage acquire(@NotNull Path filePath,
+                                         Class<? extends LocalStorage> type,
+                                         @NotNull Supplier<LocalStorage> factory) {
+
+        Path key = filePath.toAbsolutePath().normalize();
+
+        Registration registration;
+        boolean creator = false;
+
+        lock.lock();
+        try {
+            registration = registrations.get(key);
+            if (registration == null) {
+                registration = new Registration(type);
+                registrations.put(key, registration);
+                creator = true;
+            } else if (registration.type != null && type != null && registration.type != type) {
+                throw new LocalStorageException("%s is already open as %s, can not share it as %s".formatted(
+                        key, registration.type.getSimpleName(), type.getSimpleName()
+                ));
+            }
+            registration.references++;
+            registration.holders.merge(Thread.currentThread(), 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+
+        if (creator) {
+            try {
+                LocalStorage localStorage = factory.get();
+                localStorage.setRegistryKey(key);
+                registration.localStorage.complete(localStorage);
+            } catch (RuntimeException e) {
+                lock.lock();
+                try {
+                    registrations.remove(key, registration);
+                } finally {
+                    lock.unlock();
+                }
+                registration.localStorage.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return registration.localStorage.join();
+        } catch (CompletionException e) {
+            throw new LocalStorageException("Unable to open shared local storage " + key, e.getCause());
+        }
+    }
+
+    /**
+     * @return {@code true} if the storage is not shared or this was its last reference
+     */
+    static boolean release(@NotNull LocalStorage localStorage) {
+        Path key = localStorage.getRegistryKey();
+        if (key == null) return true;
+
+        lock.lock();
+        try {
+            Registration registration = registrations.get(key);
+            if (registration == null || registration.localStorage.getNow(null) != localStorage) return false;
+
+            Thread holder = Thread.currentThread();
+            Integer held = registration.holders.get(holder);
+            if (held == null) return false;
+
+            if (held == 1) {
+                registration.holders.remove(holder);
+            } else {
+                registration.holders.put(holder, held - 1);
+            }
+            if (--registration.references == 0) {
+                registrations.remove(key);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static int getReferenceCount(@NotNull Path filePath) {
+        lock.lock();
+        try {
+            Registration registration = registrations.get(filePath.toAbsolutePath().normalize());
+            return registration != null ? registration.references : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Registration {
+        private final Class<? extends LocalStorage> type;
+        private final CompletableFuture<LocalStorage> localStorage = new CompletableFuture<>();
+        private final Map<Thread, Integer> holders = new HashMap<>();
+        private int references;
+
+        private Registration(Class<? extends LocalStorage> type) {
+            this.type = type;
+        }
+    }
+}
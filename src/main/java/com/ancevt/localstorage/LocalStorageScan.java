@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy key-ordered scan over one {@link LocalStorageSnapshot}. Bounds, offset and limit are resolved in O(log N)
+ * against the snapshot tree, so fetching a page costs its size rather than the size of the storage.
+ * <pre>{@code
+ * List<Map.Entry<String, String>> page = localStorage.scan()
+ *         .keyStartsWith("user.")
+ *         .after(lastKeyOfPreviousPage)
+ *         .limit(100)
+ *         .list();
+ * }</pre>
+ */
+public class LocalStorageScan {
+
+    private final LocalStorageSnapshot snapshot;
+    private String keyStartsWith;
+    private String fromKey;
+    private String afterKey;
+    private String toKey;
+    private int offset;
+    private int limit = Integer.MAX_VALUE;
+
+    LocalStorageScan(@NotNull LocalStorageSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public LocalStorageScan keyStartsWith(String keyStartsWith) {
+        this.keyStartsWith = keyStartsWith;
+        return this;
+    }
+
+    /**
+     * @param fromKey inclusive lower bound
+     */
+    public LocalStorageScan from(String fromKey) {
+        this.fromKey = fromKey;
+        return this;
+    }
+
+    /**
+     * @param afterKey exclusive lower bound, usually the last key of the previous page
+     */
+    public LocalStorageScan after(String afterKey) {
+        this.afterKey = afterKey;
+        return this;
+    }
+
+    /**
+     * @param toKey exclusive upper bound
+     */
+    public LocalStorageScan to(String toKey) {
+        this.toKey = toKey;
+        return this;
+    }
+
+    public LocalStorageScan offset(int offset) {
+        if (offset < 0) throw new IllegalArgumentException("offset < 0: " + offset);
+        this.offset = offset;
+        return this;
+    }
+
+    public LocalStorageScan limit(int limit) {
+        if (limit < 0) throw new IllegalArgumentException("limit < 0: " + limit);
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @return number of entries the scan would return, computed without visiting them
+     */
+    public int count() {
+        int[] range = resolveRange();
+        return range[1] - range[0];
+    }
+
+    public @NotNull Stream<Map.Entry<String, String>> stream() {
+        return stream(false);
+    }
+
+    public @NotNull Stream<Map.Entry<String, String>> parallelStream() {
+        return stream(true);
+    }
+
+    public @NotNull Iterator<Map.Entry<String, String>> iterator() {
+        int[] range = resolveRange();
+        Iterator<Map.Entry<String, String>> iterator =
+                LocalStorageSnapshot.toTextIterator(snapshot.getEntries().iterator(range[0]));
+        return new Iterator<>() {
+            private int remaining = range[1] - range[0];
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (remaining <= 0) throw new NoSuchElementException();
+                remaining--;
+                return iterator.next();
+            }
+        };
+    }
+
+    /**
+     * @return entries of the scan, typically one page bounded by {@link #limit(int)}
+     */
+    public @NotNull List<Map.Entry<String, String>> list() {
+        List<Map.Entry<String, String>> list = new ArrayList<>(Math.min(count(), 1 << 16));
+        iterator().forEachRemaining(list::add);
+        return list;
+    }
+
+    private Stream<Map.Entry<String, String>> stream(boolean parallel) {
+        int[] range = resolveRange();
+        return StreamSupport.stream(snapshot.getEntries().spliterator(range[0], range[1]), parallel)
+                .map(BinaryFormatHelper::toTextEntry);
+    }
+
+    private int[] resolveRange() {
+        PersistentTreeMap<Object> entries = snapshot.getEntries();
+
+        int start = 0;
+        int end = entries.size();
+
+        if (keyStartsWith != null) {
+            start = Math.max(start, entries.rank(keyStartsWith));
+            String upperBound = prefixUpperBound(keyStartsWith);
+            if (upperBound != null) end = Math.min(end, entries.rank(upperBound));
+        }
+        if (fromKey != null) {
+            start = Math.max(start, entries.rank(fromKey));
+        }
+        if (afterKey != null) {
+            start = Math.max(start, entries.rank(afterKey) + (entries.containsKey(afterKey) ? 1 : 0));
+        }
+        if (toKey != null) {
+            end = Math.min(end, entries.rank(toKey));
+        }
+
+        start = (int) Math.min((long) start + offset, end);
+        end = (int) Math.min(end, (long) start + limit);
+
+        return new int[]{start, Math.max(start, end)};
+    }
+
+    /**
+     * @return the least string greater than every string starting with the prefix, {@code null} if there is none
+     */
+    static String prefixUpperBound(@NotNull String prefix) {
+        StringBuilder stringBuilder = new StringBuilder(prefix);
+        for (int i = stringBuilder.length() - 1; i >= 0; i--) {
+            char c = stringBuilder.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                stringBuilder.setCharAt(i, (char) (c + 1));
+                stringBuilder.setLength(i + 1);
+                return stringBuilder.toString();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Immutable point-in-time view of a storage. Taking a snapshot is O(1): the storage keeps its data in a persistent
+ * tree and a snapshot simply holds on to one version of it, later writes never affect it. Entries are sorted by key.
+ */
+public final class LocalStorageSnapshot implements Iterable<Map.Entry<String, String>> {
+
+    static final LocalStorageSnapshot EMPTY = new LocalStorageSnapshot(PersistentTreeMap.empty(), 0);
+
+    private final PersistentTreeMap<Object> entries;
+    private final long version;
+    private final Map<String, ValueIndex> indexes;
+
+    LocalStorageSnapshot(@NotNull PersistentTreeMap<Object> entries, long version) {
+        this(entries, version, Map.of());
+    }
+
+    LocalStorageSnapshot(@NotNull PersistentTreeMap<Object> entries, long version,
+                         @NotNull Map<String, ValueIndex> indexes) {
+        this.entries = entries;
+        this.version = version;
+        this.indexes = indexes;
+    }
+
+    /**
+     * @return number of modifications the storage had when this snapshot was taken
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    public boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return the value, binary values are returned in their escaped text form
+     */
+    public String getString(String key) {
+        return BinaryFormatHelper.toText(entries.get(key));
+    }
+
+    /**
+     * @return copy of a binary value, UTF-8 bytes of a string value, {@code null} if there is no value
+     */
+    public byte[] getBytes(String key) {
+        Object value = SealedValue.open(entries.get(key));
+        if (value instanceof byte[] bytes) return bytes.clone();
+        return value != null ? ((String) value).getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * @return read-only buffer over a binary value without copying it, see {@link #getBytes(String)}
+     */
+    public ByteBuffer getByteBuffer(String key) {
+        Object value = SealedValue.open(entries.get(key));
+        if (value instanceof byte[] bytes) return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        return value != null ? ByteBuffer.wrap(((String) value).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @return value decoded by the codec, {@code null} if there is no value. The decoded value is cached until the key
+     * is written again, so repeated reads with the same codec instance do not decode it again
+     * @throws LocalStorageException if the codec fails to decode the value
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, @NotNull ValueCodec<T> codec) {
+        PersistentTreeMap.Node<Object> entry = entries.getEntry(key);
+        if (entry == null) return null;
+
+        Object decoded = entry.getDecoded(codec);
+        if (decoded != null) return (T) decoded;
+
+        T value;
+        try {
+            value = codec.decode(BinaryFormatHelper.toText(entry.getValue()));
+        } catch (LocalStorageException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new LocalStorageException("Unable to decode value of " + key, e);
+        }
+        entry.setDecoded(codec, value);
+        return value;
+    }
+
+    public boolean isBinary(String key) {
+        return SealedValue.open(entries.get(key)) instanceof byte[];
+    }
+
+    /**
+     * @return unmodifiable map view of this snapshot iterating in key order, no data is copied
+     */
+    public @NotNull Map<String, String> asMap() {
+        return new MapView();
+    }
+
+    @Override
+    public @NotNull Iterator<Map.Entry<String, String>> iterator() {
+        return toTextIterator(entries.iterator());
+    }
+
+    /**
+     * @return entries whose keys are greater than or equal to {@code fromKey}, in key order
+     */
+    public @NotNull Iterator<Map.Entry<String, String>> iterator(@NotNull String fromKey) {
+        return toTextIterator(entries.iterator(fromKey));
+    }
+
+    /**
+     * @return lazy key-ordered scan of this snapshot, narrowed by prefix, range, offset and limit
+     */
+    public @NotNull LocalStorageScan scan() {
+        return new LocalStorageScan(this);
+    }
+
+    public @NotNull Stream<Map.Entry<String, String>> stream() {
+        return scan().stream();
+    }
+
+    /**
+     * Visits entries whose keys start with {@code keyStartsWith} in key order, without looking at other entries
+     */
+    public void forEachGroup(@NotNull String keyStartsWith, @NotNull BiConsumer<String, String> action) {
+        Iterator<Map.Entry<String, Object>> iterator = entries.iterator(keyStartsWith);
+        while (iterator.hasNext()) {
+            Map.Entry<String, Object> entry = iterator.next();
+            if (!entry.getKey().startsWith(keyStartsWith)) break;
+            action.accept(entry.getKey(), BinaryFormatHelper.toText(entry.getValue()));
+        }
+    }
+
+    /**
+     * @return unmodifiable set of keys starting with {@code keyPrefix} whose value equals {@code value}, in key order.
+     * Takes O(result) if the storage has an index on exactly this prefix, otherwise scans keys with the prefix.
+     * @see LocalStorage#createIndex(String)
+     */
+    public @NotNull Set<String> findKeys(@NotNull String keyPrefix, @NotNull String value) {
+        ValueIndex index = indexes.get(keyPrefix);
+        if (index != null) return index.getKeys(value);
+
+        Set<String> keys = new TreeSet<>();
+        forEachGroup(keyPrefix, (key, groupValue) -> {
+            if (value.equals(groupValue)) keys.add(key);
+        });
+        return Collections.unmodifiableSet(keys);
+    }
+
+    public boolean hasIndex(@NotNull String keyPrefix) {
+        return indexes.containsKey(keyPrefix);
+    }
+
+    PersistentTreeMap<Object> getEntries() {
+        return entries;
+    }
+
+    Map<String, ValueIndex> getIndexes() {
+        return indexes;
+    }
+
+    static Iterator<Map.Entry<String, String>> toTextIterator(Iterator<Map.Entry<String, Object>> iterator) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                return BinaryFormatHelper.toTextEntry(iterator.next());
+            }
+        };
+    }
+
+    private class MapView extends AbstractMap<String, String> {
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String string && entries.containsKey(string);
+        }
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String string ? BinaryFormatHelper.toText(entries.get(string)) : null;
+        }
+
+        @Override
+        public @NotNull Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public @NotNull Iterator<Entry<String, String>> iterator() {
+                    return toTextIterator(entries.iterator());
+                }
+
+                @Override
+                public int size() {
+                    return entries.size();
+                }
+            };
+        }
+    }
+}
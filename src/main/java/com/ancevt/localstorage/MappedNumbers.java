@@ -0,0 +1,347 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Counters and gauges kept in a memory-mapped file next to the storage file, see {@link FileLocalStorage#numbers()}.
+ * A registered key gets a fixed 8-byte slot, reads and updates are atomic accesses to the mapping, so values are never
+ * parsed or formatted and the OS writes them back from its page cache. {@link #force()} makes them durable, it is
+ * called by {@code save()}.
+ * <p>
+ * These keys are a namespace of their own, they are not entries of the storage: {@code get*()}, {@code contains()},
+ * exports, {@code stringify()}, backups, checkpoints, merges and replication never see them, and a storage entry with
+ * the same key is a different value. Only {@code deleteResources()} removes the file with the storage.
+ * <p>
+ * The file is locked while it is open, a second instance in this or another process fails to open it. Closing the
+ * storage closes the file, handles taken before that throw {@link LocalStorageException}. Java can not unmap a file
+ * explicitly, the mapping is released by the garbage collector once no handle refers to it.
+ * <p>
+ * File layout: {@code "LSN" version(1) reserved(4) end(8)} followed by 8-byte aligned slots of
+ * {@code type(1) reserved(1) keyLength(2) key(UTF-8) padding value(8)}. A slot becomes visible once {@code end} is
+ * moved past it, so a crash while registering never leaves a broken slot.
+ * <pre>{@code
+ * MappedNumbers.Counter requests = localStorage.numbers().counter("http.requests");
+ * requests.incrementAndGet();
+ * }</pre>
+ */
+public final class MappedNumbers {
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final byte[] MAGIC = {'L', 'S', 'N'};
+    private static final byte VERSION = 1;
+    private static final int END_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_SIZE = 1 << 12;
+    private static final int MAX_KEY_LENGTH = Short.MAX_VALUE;
+
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+
+    private final Path filePath;
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // guarded by lock
+    private final Map<String, Slot> slots = new HashMap<>();
+    private volatile MappedByteBuffer buffer;
+    private volatile boolean closed;
+
+    private MappedNumbers(Path filePath, FileChannel channel) {
+        this.filePath = filePath;
+        this.channel = channel;
+    }
+
+    static @NotNull MappedNumbers open(@NotNull Path filePath) {
+        try {
+            FileChannel channel = FileChannel.open(filePath, CREATE, READ, WRITE);
+            try {
+                if (!tryLock(channel)) {
+                    throw new LocalStorageException("Numeric storage " + filePath + " is already open");
+                }
+                MappedNumbers numbers = new MappedNumbers(filePath, channel);
+                numbers.init();
+                return numbers;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new LocalStorageException("Unable to open numeric storage " + filePath, e);
+        }
+    }
+
+    /**
+     * @return counter of the key, registering it with value 0 if it is new
+     * @throws LocalStorageException if the key is registered as a gauge
+     */
+    public @NotNull Counter counter(@NotNull String key) {
+        return new Counter(key, slot(key, TYPE_LONG).valueOffset);
+    }
+
+    /**
+     * @return gauge of the key, registering it with value 0.0 if it is new
+     * @throws LocalStorageException if the key is registered as a counter
+     */
+    public @NotNull Gauge gauge(@NotNull String key) {
+        return new Gauge(key, slot(key, TYPE_DOUBLE).valueOffset);
+    }
+
+    public @NotNull Set<String> getKeys() {
+        lock.lock();
+        try {
+            checkOpen();
+            return Set.copyOf(slots.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes changed values to the file
+     */
+    public void force() {
+        checkOpen();
+        buffer.force();
+    }
+
+    public @NotNull Path getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * Closes the file and releases its lock, handles stop working
+     */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code false} if the file is locked by another process or by another channel of this process
+     */
+    private static boolean tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new LocalStorageException("Numeric storage " + filePath + " is closed");
+    }
+
+    private void init() throws IOException {
+        boolean created = channel.size() == 0;
+        buffer = map(Math.max(channel.size(), INITIAL_SIZE));
+
+        if (created) {
+            buffer.put(0, MAGIC).put(MAGIC.length, VERSION);
+            LONG.setVolatile(buffer, END_OFFSET, (long) HEADER_SIZE);
+            return;
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new LocalStorageException("Not a numeric storage file " + filePath);
+        if (buffer.get(MAGIC.length) != VERSION) {
+            throw new LocalStorageException("Unsupported numeric storage version " + buffer.get(MAGIC.length));
+        }
+
+        long end = (long) LONG.getVolatile(buffer, END_OFFSET);
+        if (end < HEADER_SIZE || end > buffer.capacity() || end % Long.BYTES != 0) {
+            throw new LocalStorageException("Invalid end %d of numeric storage file %s".formatted(end, filePath));
+        }
+        int offset = HEADER_SIZE;
+        while (offset < end) {
+            byte type = buffer.get(offset);
+            int keyLength = Short.toUnsignedInt(buffer.getShort(offset + 2));
+            if (type != TYPE_LONG && type != TYPE_DOUBLE || valueOffset(offset, keyLength) + Long.BYTES > end) {
+                throw new LocalStorageException("Damaged slot at offset %d of numeric storage file %s".formatted(
+                        offset, filePath
+                ));
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(offset + 4, keyBytes);
+            Slot slot = new Slot(type, valueOffset(offset, keyLength));
+            slots.put(new String(keyBytes, StandardCharsets.UTF_8), slot);
+            offset = slot.valueOffset + Long.BYTES;
+        }
+    }
+
+    private Slot slot(String key, byte type) {
+        lock.lock();
+        try {
+            checkOpen();
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                slot = register(key, type);
+            } else if (slot.type != type) {
+                throw new LocalStorageException("Key %s is registered as a %s".formatted(
+                        key, slot.type == TYPE_LONG ? "counter" : "gauge"
+                ));
+            }
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Slot register(String key, byte type) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_LENGTH) throw new LocalStorageException("Key is too long: " + key);
+
+        int offset = (int) (long) LONG.getVolatile(buffer, END_OFFSET);
+        Slot slot = new Slot(type, valueOffset(offset, keyBytes.length));
+        int end = slot.valueOffset + Long.BYTES;
+        ensureCapacity(end);
+
+        MappedByteBuffer buffer = this.buffer;
+        buffer.put(offset, type);
+        buffer.putShort(offset + 2, (short) keyBytes.length);
+        buffer.put(offset + 4, keyBytes);
+        LONG.setVolatile(buffer, slot.valueOffset, 0L);
+        LONG.setVolatile(buffer, END_OFFSET, (long) end);
+
+        slots.put(key, slot);
+        return slot;
+    }
+
+    /**
+     * Maps a larger part of the file. Handles keep using the mapping they were created with, all mappings share the
+     * same pages of the file, so their updates stay atomic and visible to each other.
+     */
+    private void ensureCapacity(int size) {
+        if (size <= buffer.capacity()) return;
+        try {
+            buffer = map(Math.max(size, buffer.capacity() * 2L));
+        } catch (IOException e) {
+            throw new LocalStorageException("Unable to grow numeric storage " + filePath, e);
+        }
+    }
+
+    private MappedByteBuffer map(long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static int valueOffset(int slotOffset, int keyLength) {
+        return (slotOffset + 4 + keyLength + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private record Slot(byte type, int valueOffset) {
+    }
+
+    public final class Counter {
+
+        private final String key;
+        private final MappedByteBuffer buffer = MappedNumbers.this.buffer;
+        private final int offset;
+
+        private Counter(String key, int offset) {
+            this.key = key;
+            this.offset = offset;
+        }
+
+        public @NotNull String getKey() {
+            return key;
+        }
+
+        public long get() {
+            checkOpen();
+            return (long) LONG.getVolatile(buffer, offset);
+        }
+
+        public void set(long value) {
+            checkOpen();
+            LONG.setVolatile(buffer, offset, value);
+        }
+
+        public long addAndGet(long delta) {
+            checkOpen();
+            return (long) LONG.getAndAdd(buffer, offset, delta) + delta;
+        }
+
+        public long incrementAndGet() {
+            return addAndGet(1);
+        }
+    }
+
+    public final class Gauge {
+
+        private final String key;
+        private final MappedByteBuffer buffer = MappedNumbers.this.buffer;
+        private final int offset;
+
+        private Gauge(String key, int offset) {
+            this.key = key;
+            this.offset = offset;
+        }
+
+        public @NotNull String getKey() {
+            return key;
+        }
+
+        public double get() {
+            checkOpen();
+            return Double.longBitsToDouble((long) LONG.getVolatile(buffer, offset));
+        }
+
+        public void set(double value) {
+            checkOpen();
+            LONG.setVolatile(buffer, offset, Double.doubleToRawLongBits(value));
+        }
+
+        public double addAndGet(double delta) {
+            checkOpen();
+            while (true) {
+                long current = (long) LONG.getVolatile(buffer, offset);
+                double updated = Double.longBitsToDouble(current) + delta;
+                if (LONG.compareAndSet(buffer, offset, current, Double.doubleToRawLongBits(updated))) return updated;
+            }
+        }
+    }
+}
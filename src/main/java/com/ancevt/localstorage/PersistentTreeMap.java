@@ -0,0 +1,497 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Immutable AVL tree sorted by key. Every update returns a new tree sharing all untouched nodes with the previous
+ * one, so keeping an old version as a snapshot costs nothing and an update costs O(log N).
+ */
+final class PersistentTreeMap<V> implements Iterable<Map.Entry<String, V>> {
+
+    private static final PersistentTreeMap<?> EMPTY = new PersistentTreeMap<>(null);
+
+    private final Node<V> root;
+
+    private PersistentTreeMap(Node<V> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentTreeMap<V> empty() {
+        return (PersistentTreeMap<V>) EMPTY;
+    }
+
+    /**
+     * Builds a perfectly balanced tree in O(N)
+     *
+     * @param keys   strictly ascending keys, only the first {@code size} are used
+     * @param values values of the keys at the same positions
+     */
+    static <V> PersistentTreeMap<V> ofSorted(String @NotNull [] keys, Object @NotNull [] values, int size) {
+        return size == 0 ? empty() : new PersistentTreeMap<>(build(keys, values, 0, size));
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    V get(@NotNull String key) {
+        Node<V> node = root;
+        while (node != null) {
+            int compare = key.compareTo(node.key);
+            if (compare == 0) return node.value;
+            node = compare < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * @return entry of the key, which also holds the decoded value cache of the current value, {@code null} if absent
+     */
+    Node<V> getEntry(@NotNull String key) {
+        Node<V> node = root;
+        while (node != null) {
+            int compare = key.compareTo(node.key);
+            if (compare == 0) return node;
+            node = compare < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    boolean containsKey(@NotNull String key) {
+        Node<V> node = root;
+        while (node != null) {
+            int compare = key.compareTo(node.key);
+            if (compare == 0) return true;
+            node = compare < 0 ? node.left : node.right;
+        }
+        return false;
+    }
+
+    PersistentTreeMap<V> put(@NotNull String key, @NotNull V value) {
+        Node<V> newRoot = put(root, key, value);
+        return newRoot == root ? this : new PersistentTreeMap<>(newRoot);
+    }
+
+    PersistentTreeMap<V> remove(@NotNull String key) {
+        Node<V> newRoot = remove(root, key);
+        return newRoot == root ? this : new PersistentTreeMap<>(newRoot);
+    }
+
+    @Override
+    public @NotNull Iterator<Map.Entry<String, V>> iterator() {
+        return new EntryIterator<>(root, null);
+    }
+
+    /**
+     * @param fromKey first key to return if present, iteration starts with the least key greater than or equal to it
+     */
+    @NotNull Iterator<Map.Entry<String, V>> iterator(@NotNull String fromKey) {
+        return new EntryIterator<>(root, fromKey);
+    }
+
+    /**
+     * @return iterator starting at the entry with the given position in key order
+     */
+    @NotNull Iterator<Map.Entry<String, V>> iterator(int fromIndex) {
+        return new EntryIterator<>(root, fromIndex);
+    }
+
+    /**
+     * @return splittable spliterator over entries with positions from {@code fromIndex} inclusive to {@code toIndex}
+     * exclusive
+     */
+    @NotNull Spliterator<Map.Entry<String, V>> spliterator(int fromIndex, int toIndex) {
+        return new EntrySpliterator<>(root, fromIndex, toIndex);
+    }
+
+    /**
+     * @return number of keys less than the given key, which is the position the key has or would have
+     */
+    int rank(@NotNull String key) {
+        int rank = 0;
+        Node<V> node = root;
+        while (node != null) {
+            int compare = key.compareTo(node.key);
+            if (compare <= 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Reports every key whose value differs between this tree and {@code other}. Subtrees shared by both versions are
+     * skipped without visiting them, so comparing a tree with its updated version costs about O(changes * log N).
+     */
+    void forEachChange(@NotNull PersistentTreeMap<V> other, @NotNull ChangeConsumer<V> consumer) {
+        Deque<Node<V>> from = new ArrayDeque<>();
+        Deque<Node<V>> to = new ArrayDeque<>();
+        pushLeft(from, root);
+        pushLeft(to, other.root);
+
+        while (!from.isEmpty() || !to.isEmpty()) {
+            Node<V> fromNode = from.peek();
+            Node<V> toNode = to.peek();
+
+            if (fromNode == toNode) {
+                // the same node is the same key, value and right subtree in both versions
+                from.pop();
+                to.pop();
+                continue;
+            }
+
+            int compare = fromNode == null ? 1 : toNode == null ? -1 : fromNode.key.compareTo(toNode.key);
+            if (compare < 0) {
+                consumer.accept(fromNode.key, fromNode.value, null);
+                pushLeft(from, from.pop().right);
+            } else if (compare > 0) {
+                consumer.accept(toNode.key, null, toNode.value);
+                pushLeft(to, to.pop().right);
+            } else {
+                if (!Objects.equals(fromNode.value, toNode.value)) {
+                    consumer.accept(fromNode.key, fromNode.value, toNode.value);
+                }
+                pushLeft(from, from.pop().right);
+                pushLeft(to, to.pop().right);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V> build(String[] keys, Object[] values, int from, int to) {
+        if (from == to) return null;
+        int middle = (from + to) >>> 1;
+        return new Node<>(keys[middle], (V) values[middle],
+                build(keys, values, from, middle),
+                build(keys, values, middle + 1, to));
+    }
+
+    private static <V> void pushLeft(Deque<Node<V>> stack, Node<V> node) {
+        for (; node != null; node = node.left) {
+            stack.push(node);
+        }
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int height(Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static <V> Node<V> put(Node<V> node, String key, V value) {
+        if (node == null) return new Node<>(key, value, null, null);
+
+        int compare = key.compareTo(node.key);
+        if (compare < 0) {
+            Node<V> left = put(node.left, key, value);
+            return left == node.left ? node : balance(node, left, node.right);
+        } else if (compare > 0) {
+            Node<V> right = put(node.right, key, value);
+            return right == node.right ? node : balance(node, node.left, right);
+        } else {
+            return Objects.equals(value, node.value) ? node : new Node<>(key, value, node.left, node.right);
+        }
+    }
+
+    private static <V> Node<V> remove(Node<V> node, String key) {
+        if (node == null) return null;
+
+        int compare = key.compareTo(node.key);
+        if (compare < 0) {
+            Node<V> left = remove(node.left, key);
+            return left == node.left ? node : balance(node, left, node.right);
+        } else if (compare > 0) {
+            Node<V> right = remove(node.right, key);
+            return right == node.right ? node : balance(node, node.left, right);
+        } else {
+            if (node.left == null) return node.right;
+            if (node.right == null) return node.left;
+
+            Node<V> min = node.right;
+            while (min.left != null) min = min.left;
+            return balance(min, node.left, removeMin(node.right));
+        }
+    }
+
+    private static <V> Node<V> removeMin(Node<V> node) {
+        if (node.left == null) return node.right;
+        return balance(node, removeMin(node.left), node.right);
+    }
+
+    /**
+     * @param entry node whose key, value and caches the balanced node keeps
+     */
+    private static <V> Node<V> balance(Node<V> entry, Node<V> left, Node<V> right) {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+
+        if (leftHeight > rightHeight + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node<>(left, left.left, new Node<>(entry, left.right, right));
+            }
+            Node<V> pivot = left.right;
+            return new Node<>(pivot, new Node<>(left, left.left, pivot.left), new Node<>(entry, pivot.right, right));
+        }
+
+        if (rightHeight > leftHeight + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node<>(right, new Node<>(entry, left, right.left), right.right);
+            }
+            Node<V> pivot = right.left;
+            return new Node<>(pivot, new Node<>(entry, left, pivot.left), new Node<>(right, pivot.right, right.right));
+        }
+
+        return new Node<>(entry, left, right);
+    }
+
+    static final class Node<V> implements Map.Entry<String, V> {
+        private final String key;
+        private final V value;
+        private final Node<V> left;
+        private final Node<V> right;
+        private final int height;
+        private final int size;
+        private volatile Decoded decoded;
+        private volatile Object sealed;
+
+        private Node(String key, V value, Node<V> left, Node<V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        private Node(Node<V> entry, Node<V> left, Node<V> right) {
+            this(entry.key, entry.value, left, right);
+            this.decoded = entry.decoded;
+            this.sealed = entry.sealed;
+        }
+
+        /**
+         * @return value decoded earlier by the same codec, {@code null} if there is none
+         */
+        Object getDecoded(@NotNull Object codec) {
+            Decoded decoded = this.decoded;
+            return decoded != null && decoded.codec == codec ? decoded.value : null;
+        }
+
+        /**
+         * Caches the decoded value. A new value of the key always gets a new node, so the cache never outlives the
+         * value it was decoded from
+         */
+        void setDecoded(@NotNull Object codec, @NotNull Object value) {
+            decoded = new Decoded(codec, value);
+        }
+
+        /**
+         * @return encrypted form of the value cached by {@link #setSealed(Object)}, {@code null} if there is none
+         */
+        Object getSealed() {
+            return sealed;
+        }
+
+        /**
+         * Caches the encrypted form of the value apart from the decoded value, so typed reads do not evict it
+         */
+        void setSealed(@NotNull Object sealed) {
+            this.sealed = sealed;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Map.Entry<?, ?> entry
+                    && key.equals(entry.getKey())
+                    && Objects.equals(value, entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    @FunctionalInterface
+    interface ChangeConsumer<V> {
+
+        /**
+         * @param oldValue {@code null} if the key was added
+         * @param newValue {@code null} if the key was removed
+         */
+        void accept(String key, V oldValue, V newValue);
+    }
+
+    private record Decoded(Object codec, Object value) {
+    }
+
+    private static final class EntryIterator<V> implements Iterator<Map.Entry<String, V>> {
+
+        private final Deque<Node<V>> stack = new ArrayDeque<>();
+
+        private EntryIterator(Node<V> root, int fromIndex) {
+            Node<V> node = root;
+            int index = fromIndex;
+            while (node != null) {
+                int leftSize = size(node.left);
+                if (index < leftSize) {
+                    stack.push(node);
+                    node = node.left;
+                } else if (index == leftSize) {
+                    stack.push(node);
+                    break;
+                } else {
+                    index -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+        }
+
+        private EntryIterator(Node<V> root, String fromKey) {
+            Node<V> node = root;
+            while (node != null) {
+                if (fromKey == null || fromKey.compareTo(node.key) <= 0) {
+                    stack.push(node);
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, V> next() {
+            if (stack.isEmpty()) throw new NoSuchElementException();
+
+            Node<V> node = stack.pop();
+            for (Node<V> child = node.right; child != null; child = child.left) {
+                stack.push(child);
+            }
+            return node;
+        }
+    }
+
+    private static final class EntrySpliterator<V> implements Spliterator<Map.Entry<String, V>> {
+
+        private static final int MIN_SPLIT_SIZE = 1 << 10;
+
+        private final Node<V> root;
+        private int index;
+        private final int end;
+        private Iterator<Map.Entry<String, V>> iterator;
+
+        private EntrySpliterator(Node<V> root, int index, int end) {
+            this.root = root;
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<String, V>> action) {
+            if (index >= end) return false;
+            if (iterator == null) iterator = new EntryIterator<>(root, index);
+            index++;
+            action.accept(iterator.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Map.Entry<String, V>> action) {
+            if (index >= end) return;
+            if (iterator == null) iterator = new EntryIterator<>(root, index);
+            while (index < end) {
+                index++;
+                action.accept(iterator.next());
+            }
+        }
+
+        @Override
+        public Spliterator<Map.Entry<String, V>> trySplit() {
+            int remaining = end - index;
+            if (remaining < MIN_SPLIT_SIZE) return null;
+
+            int middle = index + remaining / 2;
+            EntrySpliterator<V> prefix = new EntrySpliterator<>(root, index, middle);
+            index = middle;
+            iterator = null;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+
+        @Override
+        public Comparator<? super Map.Entry<String, V>> getComparator() {
+            return Map.Entry.comparingByKey();
+        }
+    }
+}
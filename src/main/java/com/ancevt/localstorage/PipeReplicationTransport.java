@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Pipe;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-JVM {@link ReplicationTransport}, every follower gets its own {@link Pipe} to the primary
+ */
+public final class PipeReplicationTransport implements ReplicationTransport {
+
+    private static final OutputStream CLOSED = OutputStream.nullOutputStream();
+
+    private final BlockingQueue<OutputStream> connections = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    @Override
+    public @NotNull OutputStream accept() throws IOException {
+        OutputStream outputStream;
+        try {
+            outputStream = connections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (outputStream == CLOSED) {
+            connections.add(CLOSED);
+            throw new ClosedChannelException();
+        }
+        return outputStream;
+    }
+
+    @Override
+    public @NotNull InputStream connect() throws IOException {
+        if (closed) throw new ClosedChannelException();
+
+        Pipe pipe = Pipe.open();
+        connections.add(Channels.newOutputStream(pipe.sink()));
+        return Channels.newInputStream(pipe.source());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connections.add(CLOSED);
+    }
+}
@@ -17,30 +17,53 @@
  */
 package com.ancevt.localstorage;
 
-public class QuickLocalStorageFactory {
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
 
-    private static LocalStorage localStorage;
-    private static LocalStorage encryptedLocalStorage;
+public class QuickLocalStorageFactory {
 
     public static LocalStorage quickLocalStorage() {
-        if (localStorage == null) {
-            localStorage = new LocalStorageBuilder("qls.ls", FileLocalStorage.class)
-                    .saveOnWrite(true)
-                    .storageId("quick-storage")
-                    .directoryPath("./")
-                    .build();
-        }
-        return localStorage;
+        return LocalStorageHolder.LOCAL_STORAGE;
     }
 
+    /**
+     * Former versions kept this storage unencrypted in the {@code qls.ls} file of {@link #quickLocalStorage()}, its
+     * entries are copied into the encrypted {@code qels.ls} file the first time it is created
+     */
     public static LocalStorage quickEncryptedLocalStorage() {
-        if (encryptedLocalStorage == null) {
-            encryptedLocalStorage = new LocalStorageBuilder("qls.ls", FileLocalStorage.class)
-                    .saveOnWrite(true)
-                    .storageId("quick-storage")
-                    .directoryPath("./")
-                    .build();
+        return EncryptedLocalStorageHolder.ENCRYPTED_LOCAL_STORAGE;
+    }
+
+    private static class LocalStorageHolder {
+        private static final LocalStorage LOCAL_STORAGE = new LocalStorageBuilder("qls.ls", FileLocalStorage.class)
+                .saveOnWrite(true)
+                .storageId("quick-storage")
+                .directoryPath("./")
+                .shared(true)
+                .build();
+    }
+
+    private static class EncryptedLocalStorageHolder {
+        private static final LocalStorage ENCRYPTED_LOCAL_STORAGE = migrate(
+                (FileLocalStorage) new LocalStorageBuilder("qels.ls", EncryptedFileLocalStorage.class)
+                        .saveOnWrite(true)
+                        .storageId("quick-storage")
+                        .directoryPath("./")
+                        .shared(true)
+                        .build()
+        );
+
+        private static LocalStorage migrate(FileLocalStorage localStorage) {
+            FileLocalStorage legacy = (FileLocalStorage) quickLocalStorage();
+            if (Files.exists(localStorage.getFilePath()) || !Files.exists(legacy.getFilePath())) return localStorage;
+
+            Map<String, Object> entries = new HashMap<>();
+            for (Map.Entry<String, Object> entry : legacy.snapshot().getEntries()) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+            if (!entries.isEmpty()) localStorage.bulkLoad(entries);
+            return localStorage;
         }
-        return encryptedLocalStorage;
     }
 }
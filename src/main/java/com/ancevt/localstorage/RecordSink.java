@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives records decoded from a storage file. A strict sink fails on the first damaged record, a recovering sink
+ * collects a problem and lets the decoder skip the record. A verifying sink keeps no records
+ */
+class RecordSink {
+
+    private final ArrayList<Map.Entry<String, Object>> entries;
+    private final List<String> problems;
+    private int recordCount;
+
+    private RecordSink(ArrayList<Map.Entry<String, Object>> entries, List<String> problems) {
+        this.entries = entries;
+        this.problems = problems;
+    }
+
+    static @NotNull RecordSink load() {
+        return new RecordSink(new ArrayList<>(), null);
+    }
+
+    static @NotNull RecordSink recover() {
+        return new RecordSink(new ArrayList<>(), new ArrayList<>());
+    }
+
+    static @NotNull RecordSink verify() {
+        return new RecordSink(null, new ArrayList<>());
+    }
+
+    /**
+     * @param value {@code null} for removals of {@code key=null} lines
+     */
+    void accept(@NotNull String key, Object value) {
+        recordCount++;
+        if (entries != null) entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+    }
+
+    /**
+     * @throws LocalStorageException unless recovering
+     */
+    void problem(@NotNull String problem) {
+        if (problems == null) throw new LocalStorageException(problem);
+        problems.add(problem);
+    }
+
+    void problem(@NotNull String problem, @NotNull RuntimeException e) {
+        if (problems == null) throw e;
+        problems.add(problem + ": " + e.getMessage());
+    }
+
+    void expect(int recordCount) {
+        if (entries != null && recordCount > 0) entries.ensureCapacity(recordCount);
+    }
+
+    /**
+     * @return whether damaged records are skipped instead of failing, values are then checked as they are decoded
+     */
+    boolean isRecovering() {
+        return problems != null;
+    }
+
+    /**
+     * @return whether the records are only checked and not loaded
+     */
+    boolean isVerifying() {
+        return entries == null;
+    }
+
+    List<Map.Entry<String, Object>> getEntries() {
+        return entries;
+    }
+
+    @NotNull LocalStorageVerification toVerification() {
+        return new LocalStorageVerification(recordCount, problems != null ? problems : List.of());
+    }
+}
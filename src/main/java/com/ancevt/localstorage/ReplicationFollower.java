@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a storage in sync with a {@link ReplicationPrimary}. The follower bootstraps from the snapshot sent by the
+ * primary and then applies its changes incrementally, each frame atomically. After a disconnect it reconnects and
+ * bootstraps again, waiting twice as long after each failed attempt up to {@value #MAX_RECONNECT_DELAY_MILLIS} ms.
+ * The storage should not be written by anything else; data is not saved unless {@code save()} is called.
+ * <p>
+ * {@link #isConnected()} and {@link #getLastError()} tell a follower in sync from one that is cut off or rejects the
+ * stream. Replication runs on the executor of the storage.
+ */
+public final class ReplicationFollower implements AutoCloseable {
+
+    private static final long RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 10_000;
+
+    private final LocalStorage localStorage;
+    private final ReplicationTransport transport;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition applied = lock.newCondition();
+    private final Condition closing = lock.newCondition();
+    private long version = -1;
+    private InputStream inputStream;
+    private volatile boolean connected;
+    private volatile Exception lastError;
+    private volatile boolean closed;
+
+    public ReplicationFollower(@NotNull LocalStorage localStorage, @NotNull ReplicationTransport transport) {
+        this.localStorage = localStorage;
+        this.transport = transport;
+    }
+
+    public ReplicationFollower start() {
+        localStorage.getExecutor().execute(this::replicate);
+        return this;
+    }
+
+    /**
+     * @return version of the primary the storage is in sync with, {@code -1} before the first snapshot is applied
+     */
+    public long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the follower is receiving changes from the primary
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return error that ended the last connection or attempt to connect, {@code null} if there was none since the
+     * last snapshot of the primary was applied
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return {@code true} if the storage reached the version of the primary within the timeout
+     */
+    public boolean awaitVersion(long version, @NotNull Duration timeout) throws InterruptedException {
+        long nanos = timeout.toNanos();
+        lock.lock();
+        try {
+            while (this.version < version) {
+                if (nanos <= 0) return false;
+                nanos = applied.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        lock.lock();
+        try {
+            closing.signalAll();
+            if (inputStream != null) inputStream.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void replicate() {
+        long delayMillis = RECONNECT_DELAY_MILLIS;
+        while (!closed) {
+            try (InputStream inputStream = connect()) {
+                DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+                ReplicationLogHelper.readHeader(dataInputStream);
+                connected = true;
+
+                ReplicationLogHelper.Frame frame;
+                while ((frame = ReplicationLogHelper.readFrame(dataInputStream)) != null) {
+                    localStorage.update(frame::apply);
+                    lastError = null;
+                    delayMillis = RECONNECT_DELAY_MILLIS;
+                    setVersion(frame.version());
+                }
+            } catch (IOException | RuntimeException e) {
+                if (closed) return;
+                lastError = e;
+            } finally {
+                connected = false;
+            }
+
+            try {
+                awaitReconnect(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delayMillis = Math.min(delayMillis * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+    }
+
+    private void awaitReconnect(long delayMillis) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        lock.lock();
+        try {
+            while (!closed && nanos > 0) {
+                nanos = closing.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private InputStream connect() throws IOException {
+        InputStream connected = transport.connect();
+        lock.lock();
+        try {
+            if (closed) {
+                connected.close();
+                throw new IOException("Follower is closed");
+            }
+            inputStream = connected;
+            return connected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setVersion(long version) {
+        lock.lock();
+        try {
+            this.version = version;
+            applied.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import lombok.SneakyThrows;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Wire format of the replication log.
+ * <p>
+ * Stream layout: {@code "LSR" version} followed by frames of {@code version(8) operation... END}. Operations are
+ * {@code CLEAR}, {@code PUT_STRING key value}, {@code PUT_BYTES key value} and {@code REMOVE key}, keys and values are
+ * prefixed with their length(4), at most {@value #MAX_LENGTH} bytes. A frame holds all changes between two versions
+ * of the primary, the first frame of a stream starts with {@code CLEAR} and carries the whole snapshot.
+ */
+class ReplicationLogHelper {
+
+    private static final byte[] MAGIC = {'L', 'S', 'R'};
+    private static final byte VERSION = 1;
+
+    private static final byte END = 0;
+    private static final byte CLEAR = 1;
+    private static final byte PUT_STRING = 2;
+    private static final byte PUT_BYTES = 3;
+    private static final byte REMOVE = 4;
+
+    private static final int MAX_LENGTH = 1 << 30;
+
+    static void writeHeader(@NotNull DataOutputStream outputStream) throws IOException {
+        outputStream.write(MAGIC);
+        outputStream.write(VERSION);
+    }
+
+    static void readHeader(@NotNull DataInputStream inputStream) throws IOException {
+        byte[] header = new byte[MAGIC.length + 1];
+        inputStream.readFully(header);
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new LocalStorageException("Not a local storage replication stream");
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new LocalStorageException("Unsupported replication stream version " + header[MAGIC.length]);
+        }
+    }
+
+    /**
+     * @param from last snapshot sent to the follower, {@code null} to send the whole snapshot
+     */
+    static void writeFrame(@NotNull DataOutputStream outputStream,
+                           LocalStorageSnapshot from,
+                           @NotNull LocalStorageSnapshot to) throws IOException {
+
+        outputStream.writeLong(to.getVersion());
+
+        PersistentTreeMap<Object> base = from != null ? from.getEntries() : null;
+        if (base == null || to.getEntries().isEmpty() && !base.isEmpty()) {
+            outputStream.write(CLEAR);
+            base = PersistentTreeMap.empty();
+        }
+        base.forEachChange(to.getEntries(), (key, oldValue, newValue) -> writeOperation(outputStream, key, newValue));
+
+        outputStream.write(END);
+    }
+
+    /**
+     * @return next frame, {@code null} if the stream ended between frames
+     */
+    static Frame readFrame(@NotNull DataInputStream inputStream) throws IOException {
+        long version;
+        try {
+            version = inputStream.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        List<Operation> operations = new ArrayList<>();
+        for (byte type = inputStream.readByte(); type != END; type = inputStream.readByte()) {
+            operations.add(switch (type) {
+                case CLEAR -> new Operation(type, null, null);
+                case REMOVE -> new Operation(type, readString(inputStream), null);
+                case PUT_STRING -> new Operation(type, readString(inputStream), readString(inputStream));
+                case PUT_BYTES -> new Operation(type, readString(inputStream), readBytes(inputStream));
+                default -> throw new LocalStorageException("Unknown replication operation " + type);
+            });
+        }
+        return new Frame(version, operations);
+    }
+
+    @SneakyThrows
+    private static void writeOperation(DataOutputStream outputStream, String key, Object value) {
+        value = SealedValue.open(value);
+        outputStream.write(value == null ? REMOVE : value instanceof byte[] ? PUT_BYTES : PUT_STRING);
+        writeBytes(outputStream, key.getBytes(StandardCharsets.UTF_8));
+        if (value instanceof byte[] bytes) {
+            writeBytes(outputStream, bytes);
+        } else if (value != null) {
+            writeBytes(outputStream, ((String) value).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void writeBytes(DataOutputStream outputStream, byte[] bytes) throws IOException {
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * The buffer grows as bytes arrive, so a corrupt length from the peer fails instead of allocating it upfront
+     */
+    private static byte[] readBytes(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new LocalStorageException("Invalid length %d in the replication stream".formatted(length));
+        }
+        byte[] bytes = inputStream.readNBytes(length);
+        if (bytes.length != length) throw new EOFException();
+        return bytes;
+    }
+
+    private static String readString(DataInputStream inputStream) throws IOException {
+        return new String(readBytes(inputStream), StandardCharsets.UTF_8);
+    }
+
+    record Frame(long version, List<Operation> operations) {
+
+        @NotNull PersistentTreeMap<Object> apply(@NotNull PersistentTreeMap<Object> entries) {
+            for (Operation operation : operations) {
+                entries = switch (operation.type) {
+                    case CLEAR -> PersistentTreeMap.empty();
+                    case REMOVE -> entries.remove(operation.key);
+                    default -> entries.put(operation.key, operation.value);
+                };
+            }
+            return entries;
+        }
+    }
+
+    private record Operation(byte type, String key, Object value) {
+    }
+}
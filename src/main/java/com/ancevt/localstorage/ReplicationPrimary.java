@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Streams the changes of a storage to {@link ReplicationFollower}s. A connecting follower first receives the current
+ * snapshot and then, in order, every change made after it. Writers never wait for followers: each follower is sent
+ * the difference between the last version it got and the latest one, so a slow follower gets fewer, larger frames.
+ * <p>
+ * Accepting and sending run on the executor of the storage.
+ */
+public final class ReplicationPrimary implements AutoCloseable {
+
+    private final LocalStorage localStorage;
+    private final ReplicationTransport transport;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private volatile IOException lastError;
+    private volatile boolean closed;
+
+    public ReplicationPrimary(@NotNull LocalStorage localStorage, @NotNull ReplicationTransport transport) {
+        this.localStorage = localStorage;
+        this.transport = transport;
+    }
+
+    public ReplicationPrimary start() {
+        localStorage.getExecutor().execute(this::acceptFollowers);
+        return this;
+    }
+
+    public int getFollowerCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return error of the transport that stopped accepting followers, {@code null} while followers are accepted
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Disconnects the followers and closes the transport
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        transport.close();
+        sessions.forEach(Session::close);
+    }
+
+    private void acceptFollowers() {
+        while (!closed) {
+            OutputStream outputStream;
+            try {
+                outputStream = transport.accept();
+            } catch (IOException e) {
+                if (!closed) lastError = e;
+                return;
+            }
+
+            Session session = new Session(outputStream);
+            sessions.add(session);
+            if (closed) session.close();
+            localStorage.getExecutor().execute(session::run);
+        }
+    }
+
+    private final class Session implements Consumer<LocalStorageSnapshot> {
+
+        private final OutputStream outputStream;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private LocalStorageSnapshot latest;
+        private boolean sessionClosed;
+
+        private Session(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void accept(LocalStorageSnapshot snapshot) {
+            lock.lock();
+            try {
+                if (latest == null || snapshot.getVersion() > latest.getVersion()) {
+                    latest = snapshot;
+                    changed.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void run() {
+            // listening before taking the first snapshot, so no change can fall in between
+            localStorage.addUpdateListener(this);
+            accept(localStorage.snapshot());
+
+            try (DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream))) {
+                ReplicationLogHelper.writeHeader(dataOutputStream);
+
+                LocalStorageSnapshot sent = null;
+                for (LocalStorageSnapshot next = awaitNext(null); next != null; next = awaitNext(sent)) {
+                    ReplicationLogHelper.writeFrame(dataOutputStream, sent, next);
+                    dataOutputStream.flush();
+                    sent = next;
+                }
+            } catch (IOException e) {
+                // the follower disconnected
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                localStorage.removeUpdateListener(this);
+                sessions.remove(this);
+            }
+        }
+
+        /**
+         * @return a version newer than {@code sent}, {@code null} when the session is closed
+         */
+        private LocalStorageSnapshot awaitNext(LocalStorageSnapshot sent) throws InterruptedException {
+            lock.lock();
+            try {
+                while (!sessionClosed && latest == sent) {
+                    changed.await();
+                }
+                return sessionClosed ? null : latest;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close() {
+            lock.lock();
+            try {
+                sessionClosed = true;
+                changed.signal();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                // already disconnected
+            }
+        }
+    }
+}
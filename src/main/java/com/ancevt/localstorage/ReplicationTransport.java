@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Carries the replication log from a {@link ReplicationPrimary} to its {@link ReplicationFollower}s. Built-in
+ * transports are {@link PipeReplicationTransport} inside one JVM and {@link SocketReplicationTransport} between
+ * processes of one host.
+ */
+public interface ReplicationTransport extends Closeable {
+
+    /**
+     * Primary side, waits for the next follower to connect
+     *
+     * @return stream the log of the connected follower is written to
+     * @throws IOException when the transport is closed
+     */
+    @NotNull OutputStream accept() throws IOException;
+
+    /**
+     * Follower side, connects to the primary
+     *
+     * @return stream of the log starting with the current snapshot of the primary
+     */
+    @NotNull InputStream connect() throws IOException;
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single writer of {@link LocalStorage#save()} for concurrent writers. Save requests go to a lock-free queue, one
+ * writer at a time drains it and persists the whole batch with a single save of the latest snapshot, which contains
+ * the writes of every queued request. Concurrent writers therefore share saves instead of each writing the file in
+ * turn.
+ * <p>
+ * A waiting caller that finds no writer running drains the queue itself, saving the hand-over to another thread, and
+ * passes further requests on to the executor.
+ * <p>
+ * A failed save is kept until a later save succeeds, so callers that do not wait for their save still learn that the
+ * storage is not persisted, see {@link #checkFailure()}.
+ */
+final class SavePipeline {
+
+    private final LocalStorage localStorage;
+    private final Executor executor;
+    private final Queue<CompletableFuture<Void>> requests = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    SavePipeline(@NotNull LocalStorage localStorage, @NotNull Executor executor) {
+        this.localStorage = localStorage;
+        this.executor = executor;
+    }
+
+    /**
+     * @param wait whether the caller is going to wait for the returned future
+     * @return future completed once every write made before the call is saved
+     */
+    CompletableFuture<Void> request(boolean wait) {
+        CompletableFuture<Void> request = new CompletableFuture<>();
+        requests.add(request);
+        if (draining.compareAndSet(false, true)) {
+            if (wait) {
+                drain(true);
+            } else {
+                handOff();
+            }
+        }
+        return request;
+    }
+
+    /**
+     * @throws LocalStorageException if the last save failed
+     */
+    void checkFailure() {
+        Throwable failure = this.failure.get();
+        if (failure != null) {
+            throw new LocalStorageException("Local storage " + localStorage.getFilename() + " is not saved, the last "
+                    + "save failed", failure);
+        }
+    }
+
+    /**
+     * @param once whether to save one batch only and pass the rest to the executor
+     */
+    private void drain(boolean once) {
+        while (true) {
+            List<CompletableFuture<Void>> batch = new ArrayList<>();
+            for (CompletableFuture<Void> request = requests.poll(); request != null; request = requests.poll()) {
+                batch.add(request);
+            }
+            if (!batch.isEmpty()) save(batch);
+
+            draining.set(false);
+            // a request added after the queue was drained but before the flag was cleared found the flag set
+            if (requests.isEmpty() || !draining.compareAndSet(false, true)) return;
+            if (once) {
+                handOff();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Continues draining on the executor, on the calling thread if the executor rejects it, so queued requests are
+     * never left waiting for a drain that does not run
+     */
+    private void handOff() {
+        try {
+            executor.execute(() -> drain(false));
+        } catch (RejectedExecutionException e) {
+            drain(false);
+        }
+    }
+
+    private void save(List<CompletableFuture<Void>> batch) {
+        try {
+            localStorage.save();
+        } catch (Throwable e) {
+            failure.set(e);
+            batch.forEach(request -> request.completeExceptionally(e));
+            return;
+        }
+        failure.set(null);
+        batch.forEach(request -> request.complete(null));
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Value loaded by {@link EntryEncryptionHelper}, kept encrypted in the storage until it is first read. The decrypted
+ * value is cached, reading it again costs nothing.
+ */
+final class SealedValue {
+
+    final EntryEncryptionHelper helper;
+    final String key;
+    final byte[] sealedValue;
+
+    /**
+     * Encrypted key, computed when the key is first written encrypted
+     */
+    volatile byte[] sealedKey;
+
+    private volatile Object value;
+
+    SealedValue(@NotNull EntryEncryptionHelper helper, @NotNull String key, byte[] sealedKey, byte[] sealedValue, Object value) {
+        this.helper = helper;
+        this.key = key;
+        this.sealedKey = sealedKey;
+        this.sealedValue = sealedValue;
+        this.value = value;
+    }
+
+    /**
+     * @return the string or the byte array value, decrypted on the first call
+     * @throws LocalStorageException if the value fails authentication
+     */
+    @NotNull Object open() {
+        Object value = this.value;
+        if (value == null) {
+            value = helper.openValue(key, sealedValue);
+            this.value = value;
+        }
+        return value;
+    }
+
+    /**
+     * @return the decrypted value if the value is sealed, the value itself otherwise
+     */
+    static Object open(Object value) {
+        return value instanceof SealedValue sealed ? sealed.open() : value;
+    }
+
+    @Override
+    public String toString() {
+        return "{encrypted}";
+    }
+}
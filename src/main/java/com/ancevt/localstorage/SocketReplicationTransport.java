@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link ReplicationTransport} over a Unix domain socket ({@link UnixDomainSocketAddress}) or a loopback TCP socket.
+ * The primary and the followers create their own transports with the same address. The log is not encrypted, so
+ * addresses reachable from other hosts are rejected.
+ */
+public final class SocketReplicationTransport implements ReplicationTransport {
+
+    private final SocketAddress address;
+    private final ReentrantLock lock = new ReentrantLock();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean closed;
+
+    /**
+     * @throws LocalStorageException if the address is neither a Unix domain address nor a resolved loopback address
+     */
+    public SocketReplicationTransport(@NotNull SocketAddress address) {
+        if (!(address instanceof UnixDomainSocketAddress)
+                && !(address instanceof InetSocketAddress inetAddress
+                && inetAddress.getAddress() != null
+                && inetAddress.getAddress().isLoopbackAddress())) {
+            throw new LocalStorageException("Replication address must be a Unix domain or loopback address: " + address);
+        }
+        this.address = address;
+    }
+
+    /**
+     * Starts listening on the primary side, done by the first {@link #accept()} if not called before. The socket
+     * file of a Unix domain address must not exist yet.
+     *
+     * @return bound address, with the actual port if the address had port 0
+     */
+    public @NotNull SocketAddress bind() throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new ClosedChannelException();
+            if (serverChannel == null) {
+                ServerSocketChannel channel = address instanceof UnixDomainSocketAddress
+                        ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                        : ServerSocketChannel.open();
+                try {
+                    channel.bind(address);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                serverChannel = channel;
+            }
+            return serverChannel.getLocalAddress();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public @NotNull OutputStream accept() throws IOException {
+        bind();
+        return Channels.newOutputStream(serverChannel.accept());
+    }
+
+    @Override
+    public @NotNull InputStream connect() throws IOException {
+        if (closed) throw new ClosedChannelException();
+        return Channels.newInputStream(SocketChannel.open(address));
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            if (serverChannel != null) {
+                serverChannel.close();
+                if (address instanceof UnixDomainSocketAddress unixAddress) Files.deleteIfExists(unixAddress.getPath());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
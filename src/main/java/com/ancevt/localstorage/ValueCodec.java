@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Converts objects to the string form stored by {@link LocalStorage} and back. Decoded values are cached per key
+ * until the key is written again and are shared between readers, so codecs should produce immutable objects.
+ * Built-in codecs are in {@link ValueCodecs}.
+ *
+ * @param <T> type of the values
+ */
+public interface ValueCodec<T> {
+
+    @NotNull String encode(@NotNull T value);
+
+    @NotNull T decode(@NotNull String text);
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Built-in {@link ValueCodec}s. Scalars are stored in their {@code toString()} form, so values written by
+ * {@link LocalStorage#put(String, Object)} can be read with these codecs and vice versa.
+ */
+public final class ValueCodecs {
+
+    public static final ValueCodec<String> STRING = of(Function.identity(), Function.identity());
+    public static final ValueCodec<Integer> INT = of(String::valueOf, Integer::parseInt);
+    public static final ValueCodec<Long> LONG = of(String::valueOf, Long::parseLong);
+    public static final ValueCodec<Short> SHORT = of(String::valueOf, Short::parseShort);
+    public static final ValueCodec<Byte> BYTE = of(String::valueOf, Byte::parseByte);
+    public static final ValueCodec<Float> FLOAT = of(String::valueOf, Float::parseFloat);
+    public static final ValueCodec<Double> DOUBLE = of(String::valueOf, Double::parseDouble);
+    public static final ValueCodec<Boolean> BOOLEAN = of(String::valueOf, Boolean::parseBoolean);
+    public static final ValueCodec<Character> CHAR = of(String::valueOf, text -> {
+        if (text.length() != 1) throw new IllegalArgumentException("Not a single character: " + text);
+        return text.charAt(0);
+    });
+
+    private static final char SEPARATOR = ',';
+    private static final char ESCAPE = '\\';
+
+    private static final Map<Class<?>, ValueCodec<?>> RECORD_CODECS = new ConcurrentHashMap<>();
+
+    private ValueCodecs() {
+    }
+
+    public static <T> @NotNull ValueCodec<T> of(@NotNull Function<T, String> encoder,
+                                                @NotNull Function<String, T> decoder) {
+        return new ValueCodec<>() {
+            @Override
+            public @NotNull String encode(@NotNull T value) {
+                return encoder.apply(value);
+            }
+
+            @Override
+            public @NotNull T decode(@NotNull String text) {
+                return decoder.apply(text);
+            }
+        };
+    }
+
+    public static <E extends Enum<E>> @NotNull ValueCodec<E> ofEnum(@NotNull Class<E> enumClass) {
+        return of(Enum::name, text -> Enum.valueOf(enumClass, text));
+    }
+
+    /**
+     * Codec of lists, every element is followed by {@code ','}, commas and backslashes inside elements are escaped
+     * with a backslash. Decoded lists are unmodifiable.
+     */
+    public static <T> @NotNull ValueCodec<List<T>> list(@NotNull ValueCodec<T> elementCodec) {
+        return of(
+                list -> {
+                    StringBuilder stringBuilder = new StringBuilder();
+                    for (T element : list) {
+                        appendEscaped(stringBuilder, elementCodec.encode(element));
+                        stringBuilder.append(SEPARATOR);
+                    }
+                    return stringBuilder.toString();
+                },
+                text -> {
+                    List<T> list = new ArrayList<>();
+                    for (String element : split(text)) {
+                        list.add(elementCodec.decode(element));
+                    }
+                    return Collections.unmodifiableList(list);
+                }
+        );
+    }
+
+    /**
+     * Codec of records, components are stored in declaration order the same way as list elements. Supported
+     * component types are strings, primitives and their wrappers, enums, records and lists of those.
+     */
+    @SuppressWarnings("unchecked")
+    public static <R extends Record> @NotNull ValueCodec<R> record(@NotNull Class<R> recordClass) {
+        ValueCodec<?> codec = RECORD_CODECS.get(recordClass);
+        if (codec == null) {
+            // not computeIfAbsent: creating a codec of a record with record components registers them recursively
+            codec = createRecordCodec(recordClass);
+            ValueCodec<?> existing = RECORD_CODECS.putIfAbsent(recordClass, codec);
+            if (existing != null) codec = existing;
+        }
+        return (ValueCodec<R>) codec;
+    }
+
+    private static ValueCodec<?> createRecordCodec(Class<?> recordClass) {
+        RecordComponent[] components = recordClass.getRecordComponents();
+        int count = components.length;
+        MethodHandle[] accessors = new MethodHandle[count];
+        List<ValueCodec<Object>> codecs = new ArrayList<>(count);
+        Class<?>[] types = new Class<?>[count];
+        MethodHandle constructor;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            for (int i = 0; i < count; i++) {
+                RecordComponent component = components[i];
+                component.getAccessor().setAccessible(true);
+                accessors[i] = lookup.unreflect(component.getAccessor());
+                codecs.add(componentCodec(component));
+                types[i] = component.getType();
+            }
+            Constructor<?> canonicalConstructor = recordClass.getDeclaredConstructor(types);
+            canonicalConstructor.setAccessible(true);
+            constructor = lookup.unreflectConstructor(canonicalConstructor).asSpreader(Object[].class, count);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new LocalStorageException("Unable to create codec for " + recordClass.getName(), e);
+        }
+
+        return of(
+                value -> {
+                    StringBuilder stringBuilder = new StringBuilder();
+                    for (int i = 0; i < count; i++) {
+                        Object component = invoke(accessors[i], value);
+                        if (component == null) {
+                            throw new LocalStorageException("Null component " + components[i].getName()
+                                    + " of " + recordClass.getName());
+                        }
+                        appendEscaped(stringBuilder, codecs.get(i).encode(component));
+                        stringBuilder.append(SEPARATOR);
+                    }
+                    return stringBuilder.toString();
+                },
+                text -> {
+                    List<String> elements = split(text);
+                    if (elements.size() != count) {
+                        throw new LocalStorageException("Expected " + count + " components of "
+                                + recordClass.getName() + " but found " + elements.size());
+                    }
+                    Object[] arguments = new Object[count];
+                    for (int i = 0; i < count; i++) {
+                        arguments[i] = codecs.get(i).decode(elements.get(i));
+                    }
+                    return invoke(constructor, arguments);
+                }
+        );
+    }
+
+    /**
+     * The codec only ever gets values read from the accessor of this component, which are of the component type
+     */
+    @SuppressWarnings("unchecked")
+    private static ValueCodec<Object> componentCodec(RecordComponent component) {
+        return (ValueCodec<Object>) forType(component.getGenericType());
+    }
+
+    // enum and record component classes are only known at runtime, so their codecs are created from raw classes
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ValueCodec<?> forType(Type type) {
+        if (type instanceof ParameterizedType parameterizedType && parameterizedType.getRawType() == List.class) {
+            return list(forType(parameterizedType.getActualTypeArguments()[0]));
+        }
+        if (!(type instanceof Class<?> rawType)) {
+            throw new LocalStorageException("Unsupported component type " + type.getTypeName());
+        }
+        if (rawType == String.class) return STRING;
+        if (rawType == int.class || rawType == Integer.class) return INT;
+        if (rawType == long.class || rawType == Long.class) return LONG;
+        if (rawType == short.class || rawType == Short.class) return SHORT;
+        if (rawType == byte.class || rawType == Byte.class) return BYTE;
+        if (rawType == float.class || rawType == Float.class) return FLOAT;
+        if (rawType == double.class || rawType == Double.class) return DOUBLE;
+        if (rawType == boolean.class || rawType == Boolean.class) return BOOLEAN;
+        if (rawType == char.class || rawType == Character.class) return CHAR;
+        if (rawType.isEnum()) return ofEnum((Class) rawType);
+        if (rawType.isRecord()) return record((Class) rawType);
+        throw new LocalStorageException("Unsupported component type " + rawType.getName());
+    }
+
+    private static Object invoke(MethodHandle methodHandle, Object argument) {
+        try {
+            return methodHandle.invoke(argument);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new LocalStorageException(e);
+        }
+    }
+
+    private static void appendEscaped(StringBuilder stringBuilder, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == SEPARATOR || c == ESCAPE) stringBuilder.append(ESCAPE);
+            stringBuilder.append(c);
+        }
+    }
+
+    private static List<String> split(String text) {
+        List<String> elements = new ArrayList<>();
+        StringBuilder element = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ESCAPE && i + 1 < text.length()) {
+                element.append(text.charAt(++i));
+            } else if (c == SEPARATOR) {
+                elements.add(element.toString());
+                element.setLength(0);
+            } else {
+                element.append(c);
+            }
+        }
+        if (!element.isEmpty()) elements.add(element.toString());
+        return elements;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable secondary index of the values of keys starting with a prefix, maps a value in its text form to the sorted
+ * set of keys having it. Updated together with the data by {@link LocalStorage}, so every snapshot has indexes
+ * matching its entries.
+ */
+final class ValueIndex {
+
+    private static final PersistentTreeMap<Boolean> NO_KEYS = PersistentTreeMap.empty();
+
+    private final String keyPrefix;
+    private final PersistentTreeMap<PersistentTreeMap<Boolean>> keysByValue;
+
+    private ValueIndex(String keyPrefix, PersistentTreeMap<PersistentTreeMap<Boolean>> keysByValue) {
+        this.keyPrefix = keyPrefix;
+        this.keysByValue = keysByValue;
+    }
+
+    /**
+     * Builds the index in bulk: keys are grouped by value in key order, so every key set and the value tree are built
+     * balanced in one pass instead of inserting key by key
+     */
+    static @NotNull ValueIndex build(@NotNull String keyPrefix, @NotNull PersistentTreeMap<Object> entries) {
+        Map<String, List<String>> keysByValue = new HashMap<>();
+        Iterator<Map.Entry<String, Object>> iterator = entries.iterator(keyPrefix);
+        while (iterator.hasNext()) {
+            Map.Entry<String, Object> entry = iterator.next();
+            if (!entry.getKey().startsWith(keyPrefix)) break;
+            keysByValue.computeIfAbsent(BinaryFormatHelper.toText(entry.getValue()), value -> new ArrayList<>())
+                    .add(entry.getKey());
+        }
+
+        String[] values = keysByValue.keySet().toArray(String[]::new);
+        Arrays.sort(values);
+        Object[] keySets = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            String[] keys = keysByValue.get(values[i]).toArray(String[]::new);
+            Object[] present = new Object[keys.length];
+            Arrays.fill(present, Boolean.TRUE);
+            keySets[i] = PersistentTreeMap.ofSorted(keys, present, keys.length);
+        }
+        return new ValueIndex(keyPrefix, PersistentTreeMap.ofSorted(values, keySets, values.length));
+    }
+
+    /**
+     * @return indexes rebuilt for entries that share little with the previous version, e.g. after a bulk load
+     */
+    static @NotNull Map<String, ValueIndex> rebuild(@NotNull Map<String, ValueIndex> indexes,
+                                                    @NotNull PersistentTreeMap<Object> entries) {
+        if (indexes.isEmpty()) return indexes;
+
+        Map<String, ValueIndex> rebuilt = new HashMap<>();
+        indexes.keySet().forEach(keyPrefix -> rebuilt.put(keyPrefix, build(keyPrefix, entries)));
+        return Map.copyOf(rebuilt);
+    }
+
+    /**
+     * @return indexes updated with the changes between two versions of the entries
+     */
+    static @NotNull Map<String, ValueIndex> update(@NotNull Map<String, ValueIndex> indexes,
+                                                   @NotNull PersistentTreeMap<Object> from,
+                                                   @NotNull PersistentTreeMap<Object> to) {
+        if (indexes.isEmpty()) return indexes;
+
+        Map<String, ValueIndex> updated = new HashMap<>(indexes);
+        if (to.isEmpty()) {
+            updated.replaceAll((keyPrefix, index) -> new ValueIndex(keyPrefix, PersistentTreeMap.empty()));
+        } else {
+            from.forEachChange(to, (key, oldValue, newValue) -> updated.replaceAll((keyPrefix, index) ->
+                    key.startsWith(keyPrefix) ? index.remove(key, oldValue).add(key, newValue) : index));
+        }
+        return Map.copyOf(updated);
+    }
+
+    /**
+     * @return unmodifiable set of keys having the value, in key order
+     */
+    @NotNull Set<String> getKeys(@NotNull String value) {
+        PersistentTreeMap<Boolean> keys = keysByValue.get(value);
+        return new KeySet(keys != null ? keys : NO_KEYS);
+    }
+
+    private ValueIndex add(String key, Object value) {
+        if (value == null) return this;
+
+        String text = BinaryFormatHelper.toText(value);
+        PersistentTreeMap<Boolean> keys = keysByValue.get(text);
+        return new ValueIndex(keyPrefix, keysByValue.put(text, (keys != null ? keys : NO_KEYS).put(key, Boolean.TRUE)));
+    }
+
+    private ValueIndex remove(String key, Object value) {
+        if (value == null) return this;
+
+        String text = BinaryFormatHelper.toText(value);
+        PersistentTreeMap<Boolean> keys = keysByValue.get(text);
+        if (keys == null) return this;
+
+        keys = keys.remove(key);
+        return new ValueIndex(keyPrefix, keys.isEmpty() ? keysByValue.remove(text) : keysByValue.put(text, keys));
+    }
+
+    private static final class KeySet extends AbstractSet<String> {
+
+        private final PersistentTreeMap<Boolean> keys;
+
+        private KeySet(PersistentTreeMap<Boolean> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public @NotNull Iterator<String> iterator() {
+            Iterator<Map.Entry<String, Boolean>> iterator = keys.iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return iterator.next().getKey();
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String key && keys.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return keys.size();
+        }
+    }
+}
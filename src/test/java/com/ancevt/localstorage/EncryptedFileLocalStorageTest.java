@@ -17,9 +17,378 @@
  */
 package com.ancevt.localstorage;
 
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 public class EncryptedFileLocalStorageTest extends LocalStorageTest {
 
     public EncryptedFileLocalStorageTest() {
         super(EncryptedFileLocalStorage.class);
     }
+
+    @Test
+    void testStreamingFormat() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage();
+        try {
+            Map<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 20_000; i++) {
+                expected.put("key" + i, "value of entry number " + i);
+            }
+            localStorage.bulkLoad(expected);
+
+            assertThat(createEncryptedLocalStorage().toSortedMap(), is(expected));
+
+            Path filePath = localStorage.getFilePath();
+            byte[] bytes = Files.readAllBytes(filePath);
+            bytes[bytes.length / 2] ^= 1;
+            Files.write(filePath, bytes);
+            assertThrows(LocalStorageException.class, () -> createEncryptedLocalStorage().load());
+
+            Files.write(filePath, Arrays.copyOf(bytes, bytes.length - 100));
+            assertThrows(LocalStorageException.class, () -> createEncryptedLocalStorage().load());
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testCorruptFrameLength() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage();
+        try {
+            localStorage.put("a", "1");
+            localStorage.save();
+
+            Path filePath = localStorage.getFilePath();
+            byte[] bytes = Files.readAllBytes(filePath);
+            int wrappedKeyLengthOffset = FileHeaderHelper.HEADER_LENGTH + 4 + Integer.BYTES + Long.BYTES;
+            int wrappedKeyLength = (bytes[wrappedKeyLengthOffset] & 0xFF) << 8 | bytes[wrappedKeyLengthOffset + 1] & 0xFF;
+            bytes[wrappedKeyLengthOffset + Short.BYTES + wrappedKeyLength + 1] ^= (byte) 0x80;
+            Files.write(filePath, bytes);
+
+            assertThrows(LocalStorageException.class, () -> createEncryptedLocalStorage().load());
+            EncryptedFileLocalStorage recovered = (EncryptedFileLocalStorage)
+                    new LocalStorageBuilder("encrypted", EncryptedFileLocalStorage.class)
+                    .storageId("test.localstorage")
+                    .recover(true)
+                    .build();
+            assertThat(recovered.getItemCount(), is(0));
+            assertThat(recovered.verify().isValid(), is(false));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testInterruptedKeyWrite() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage();
+        try {
+            localStorage.put("a", "1");
+            localStorage.save();
+
+            Path privateKeyPath = localStorage.getFilePath().resolveSibling(localStorage.getFilePath().getFileName() + ".rsa");
+            Path publicKeyPath = privateKeyPath.resolveSibling(privateKeyPath.getFileName() + ".pub");
+            KeyPair otherPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+
+            // a public key of another pair next to the private key is replaced
+            Files.write(publicKeyPath, otherPair.getPublic().getEncoded());
+            assertThat(createEncryptedLocalStorage().getString("a"), is("1"));
+
+            // a new pair written completely but not moved in place yet is completed
+            Files.move(privateKeyPath, privateKeyPath.resolveSibling(privateKeyPath.getFileName() + ".new"));
+            Files.move(publicKeyPath, publicKeyPath.resolveSibling(publicKeyPath.getFileName() + ".new"));
+            Files.write(privateKeyPath, otherPair.getPrivate().getEncoded());
+            Files.write(publicKeyPath, otherPair.getPublic().getEncoded());
+            assertThat(createEncryptedLocalStorage().getString("a"), is("1"));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testParallelDecrypt() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage();
+        try {
+            EncryptionHelper encryptionHelper = new EncryptionHelper(localStorage);
+            byte[] bytes = new byte[1_000_000];
+            new Random(1).nextBytes(bytes);
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            try (OutputStream encryptingStream = EncryptedFormatHelper.encrypt(outputStream, encryptionHelper)) {
+                encryptingStream.write(bytes);
+            }
+            byte[] encrypted = outputStream.toByteArray();
+            InputStream decryptingStream = EncryptedFormatHelper.decrypt(
+                    new ByteArrayInputStream(encrypted), encryptionHelper, 4, localStorage.getExecutor()
+            );
+            assertArrayEquals(bytes, decryptingStream.readAllBytes());
+
+            // frames never started by the executor are decrypted by the reader
+            Executor idleExecutor = task -> {
+            };
+            decryptingStream = EncryptedFormatHelper.decrypt(
+                    new ByteArrayInputStream(encrypted), encryptionHelper, 4, idleExecutor
+            );
+            assertArrayEquals(bytes, decryptingStream.readAllBytes());
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testLegacyFormat() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage();
+        try {
+            Files.createDirectories(localStorage.getFilePath().getParent());
+            writeLegacyFile(localStorage, "a=1\nb=2\n");
+
+            assertThat(createEncryptedLocalStorage().toSortedMap(), is(Map.of("a", "1", "b", "2")));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testEntryEncryption() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage(LocalStorageEncryption.KEYS_AND_VALUES);
+        try {
+            localStorage.put("secret.password", "hunter2");
+            localStorage.putBytes("secret.token", new byte[]{1, 2, 3});
+            localStorage.put("plain", "value");
+            localStorage.save();
+
+            String content = Files.readString(localStorage.getFilePath(), StandardCharsets.ISO_8859_1);
+            assertThat(content.contains("secret") || content.contains("hunter2"), is(false));
+
+            PersistentTreeMap.Node<Object> node = localStorage.snapshot().getEntries().getEntry("secret.password");
+            Object sealedOnSave = node.getSealed();
+            assertThat(sealedOnSave instanceof SealedValue, is(true));
+            assertThat(localStorage.get("secret.password", ValueCodecs.STRING), is("hunter2"));
+            localStorage.save();
+            assertSame(sealedOnSave, node.getSealed());
+
+            EncryptedFileLocalStorage reloaded = createEncryptedLocalStorage(LocalStorageEncryption.KEYS_AND_VALUES);
+            Object sealed = reloaded.snapshot().getEntries().get("secret.password");
+            assertThat(sealed instanceof SealedValue, is(true));
+            assertThat(reloaded.getString("secret.password"), is("hunter2"));
+            assertArrayEquals(new byte[]{1, 2, 3}, reloaded.getBytes("secret.token"));
+
+            reloaded.put("plain", "changed");
+            reloaded.save();
+            EncryptedFileLocalStorage second = createEncryptedLocalStorage(LocalStorageEncryption.VALUES);
+            SealedValue unchanged = (SealedValue) second.snapshot().getEntries().get("secret.password");
+            assertArrayEquals(((SealedValue) sealed).sealedValue, unchanged.sealedValue);
+            assertThat(second.toSortedMap(), is(reloaded.toSortedMap()));
+
+            second.put("secret.password", "changed");
+            second.save();
+            assertThat(Files.readString(localStorage.getFilePath(), StandardCharsets.ISO_8859_1).contains("secret"), is(true));
+
+            byte[] bytes = Files.readAllBytes(localStorage.getFilePath());
+            bytes[bytes.length - 1] ^= 1;
+            Files.write(localStorage.getFilePath(), bytes);
+            assertThrows(LocalStorageException.class,
+                    () -> createEncryptedLocalStorage(LocalStorageEncryption.VALUES).load());
+            EncryptedFileLocalStorage tampered = (EncryptedFileLocalStorage)
+                    new LocalStorageBuilder("encrypted", EncryptedFileLocalStorage.class)
+                            .storageId("test.localstorage")
+                            .encryption(LocalStorageEncryption.VALUES)
+                            .recover(true)
+                            .build();
+            assertThat(tampered.getString("plain"), is("changed"));
+            assertThat(tampered.getString("secret.token"), is((String) null));
+            assertThat(tampered.getOpenRecovery().problems().size(), is(2));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testEntryRecovery() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage(LocalStorageEncryption.VALUES);
+        try {
+            localStorage.put("first", "1").put("truncated", "2").put("last", "3");
+            localStorage.save();
+
+            // the value of the record is cut to a few bytes, shorter than its nonce
+            byte[] bytes = Files.readAllBytes(localStorage.getFilePath());
+            byte[] key = "truncated".getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int keyOffset = indexOf(bytes, key);
+            int valueOffset = keyOffset + key.length + Integer.BYTES;
+            int valueLength = buffer.getInt(keyOffset + key.length);
+            ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+            truncated.write(bytes, 0, keyOffset + key.length);
+            truncated.write(new byte[]{0, 0, 0, 5});
+            truncated.write(bytes, valueOffset, 5);
+            truncated.write(bytes, valueOffset + valueLength, bytes.length - valueOffset - valueLength);
+            Files.write(localStorage.getFilePath(), truncated.toByteArray());
+
+            EncryptedFileLocalStorage recovered = (EncryptedFileLocalStorage)
+                    new LocalStorageBuilder("encrypted", EncryptedFileLocalStorage.class)
+                            .storageId("test.localstorage")
+                            .encryption(LocalStorageEncryption.VALUES)
+                            .recover(true)
+                            .build();
+            assertThat(recovered.toSortedMap(), is(Map.of("first", "1", "last", "3")));
+            assertThat(recovered.getOpenRecovery().isValid(), is(false));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testFrozenRebuildFailure() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage(LocalStorageEncryption.VALUES);
+        try {
+            localStorage.put("a", "1");
+            EntryEncryptionHelper helper = EntryEncryptionHelper.generate(new EncryptionHelper(localStorage), false);
+
+            try (FrozenLocalStorage frozen = localStorage.freeze()) {
+                SealedValue forged = new SealedValue(helper, "b", null, new byte[64], null);
+                long version = localStorage.update(entries -> entries.put("b", forged)).getVersion();
+                assertThrows(LocalStorageException.class, () -> frozen.awaitVersion(version, Duration.ofSeconds(10)));
+                assertThat(frozen.getString("a"), is("1"));
+
+                localStorage.remove("b");
+                assertTrue(frozen.awaitVersion(localStorage.snapshot().getVersion(), Duration.ofSeconds(10)));
+                assertThat(frozen.contains("b"), is(false));
+            }
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testKeyRotation() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage(LocalStorageEncryption.VALUES);
+        try {
+            localStorage.put("a", "1");
+            localStorage.put("b", "2");
+            localStorage.save();
+            long keyId = new EncryptionHelper(localStorage).getKeyId();
+
+            // a rotation interrupted before the file is rewritten keeps the file readable
+            new EncryptionHelper(localStorage).rotate();
+            EncryptedFileLocalStorage interrupted = createEncryptedLocalStorage(LocalStorageEncryption.VALUES);
+            SealedValue sealed = (SealedValue) interrupted.snapshot().getEntries().get("a");
+            assertThat(interrupted.toSortedMap(), is(Map.of("a", "1", "b", "2")));
+
+            interrupted.rotateKeysAsync().join();
+            long rotatedKeyId = new EncryptionHelper(localStorage).getKeyId();
+            assertThat(rotatedKeyId == keyId, is(false));
+
+            Path directory = localStorage.getFilePath().getParent();
+            try (var paths = Files.list(directory)) {
+                assertThat(paths.anyMatch(path -> path.getFileName().toString().matches("encrypted\\.rsa\\.[0-9a-f]+")), is(false));
+            }
+
+            EncryptedFileLocalStorage reloaded = createEncryptedLocalStorage(LocalStorageEncryption.VALUES);
+            assertArrayEquals(sealed.sealedValue, ((SealedValue) reloaded.snapshot().getEntries().get("a")).sealedValue);
+            assertThat(reloaded.toSortedMap(), is(Map.of("a", "1", "b", "2")));
+
+            // the public key is restored from the private key instead of generating a new pair
+            Files.delete(directory.resolve("encrypted.rsa.pub"));
+            assertThat(new EncryptionHelper(localStorage).getKeyId(), is(rotatedKeyId));
+
+            EncryptedFileLocalStorage fileEncrypted = createEncryptedLocalStorage(LocalStorageEncryption.FILE);
+            fileEncrypted.rotateKeys();
+            assertThat(createEncryptedLocalStorage().toSortedMap(), is(Map.of("a", "1", "b", "2")));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testKeyTypes() throws Exception {
+        EncryptedFileLocalStorage localStorage = createEncryptedLocalStorage();
+        try {
+            localStorage.put("a", "1");
+            localStorage.save();
+            Path directory = localStorage.getFilePath().getParent();
+            assertThat(Files.exists(directory.resolve("encrypted.rsa")), is(true));
+
+            // the existing RSA pair is kept until the keys are rotated
+            EncryptedFileLocalStorage x25519 = createEncryptedLocalStorage(LocalStorageEncryption.VALUES, LocalStorageKeyType.X25519);
+            assertThat(x25519.toSortedMap(), is(Map.of("a", "1")));
+            x25519.rotateKeys();
+            assertThat(Files.exists(directory.resolve("encrypted.rsa")), is(false));
+            assertThat(Files.exists(directory.resolve("encrypted.x25519")), is(true));
+
+            x25519.put("b", "2");
+            x25519.save();
+            EncryptedFileLocalStorage reloaded = createEncryptedLocalStorage(LocalStorageEncryption.FILE, LocalStorageKeyType.RSA);
+            assertThat(reloaded.toSortedMap(), is(Map.of("a", "1", "b", "2")));
+            assertThat(reloaded.getKeyType(), is(LocalStorageKeyType.RSA));
+            reloaded.save();
+            assertThat(createEncryptedLocalStorage().toSortedMap(), is(Map.of("a", "1", "b", "2")));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) return i;
+        }
+        throw new AssertionError("Not found");
+    }
+
+    /**
+     * Writes the storage file in the former format, the whole text encrypted with the RSA public key of the storage
+     */
+    private static void writeLegacyFile(EncryptedFileLocalStorage localStorage, String text) throws Exception {
+        // generates the key pair if it does not exist yet
+        new EncryptionHelper(localStorage).getKeyId();
+
+        Path filePath = localStorage.getFilePath();
+        byte[] encodedKey = Files.readAllBytes(filePath.resolveSibling(filePath.getFileName() + ".rsa.pub"));
+        PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encodedKey));
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+        Files.write(filePath, cipher.doFinal(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static EncryptedFileLocalStorage createEncryptedLocalStorage() {
+        return createEncryptedLocalStorage(LocalStorageEncryption.FILE);
+    }
+
+    private static EncryptedFileLocalStorage createEncryptedLocalStorage(LocalStorageEncryption encryption) {
+        return createEncryptedLocalStorage(encryption, LocalStorageKeyType.RSA);
+    }
+
+    private static EncryptedFileLocalStorage createEncryptedLocalStorage(LocalStorageEncryption encryption,
+                                                                         LocalStorageKeyType keyType) {
+        return (EncryptedFileLocalStorage) new LocalStorageBuilder("encrypted", EncryptedFileLocalStorage.class)
+                .storageId("test.localstorage")
+                .encryption(encryption)
+                .keyType(keyType)
+                .build();
+    }
 }
@@ -17,9 +17,444 @@
  */
 package com.ancevt.localstorage;
 
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 public class FileLocalStorageTest extends LocalStorageTest {
 
+    private static final int CONCURRENT_WRITERS = 10_000;
+
     public FileLocalStorageTest() {
         super(FileLocalStorage.class);
     }
+
+    /**
+     * Runs the writers on virtual threads only on Java 21+. On Java 17, the build target, it covers 64 platform
+     * threads, so pinning of virtual threads while they wait for a save is not tested there
+     */
+    @Test
+    void testConcurrentSaveOnWrite() throws Exception {
+        LocalStorage localStorage = new LocalStorageBuilder("stressstorage", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .saveOnWrite(true)
+                .build();
+
+        try {
+            ExecutorService executorService = createWriterExecutor();
+            for (int i = 0; i < CONCURRENT_WRITERS; i++) {
+                int index = i;
+                executorService.execute(() -> localStorage.put("key" + index, index));
+            }
+            executorService.shutdown();
+            assertTrue(executorService.awaitTermination(5, TimeUnit.MINUTES));
+
+            LocalStorage reloaded = new LocalStorageBuilder("stressstorage", FileLocalStorage.class)
+                    .storageId("test.localstorage")
+                    .build();
+
+            assertThat(reloaded.getItemCount(), is(CONCURRENT_WRITERS));
+            for (int i = 0; i < CONCURRENT_WRITERS; i++) {
+                assertThat(reloaded.getInt("key" + i, -1), is(i));
+            }
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testWriteBehind() throws Exception {
+        LocalStorage localStorage = new LocalStorageBuilder("stressstorage", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .saveOnWrite(true)
+                .writeBehind(true)
+                .build();
+
+        try {
+            ExecutorService executorService = createWriterExecutor();
+            for (int i = 0; i < CONCURRENT_WRITERS; i++) {
+                int index = i;
+                executorService.execute(() -> localStorage.put("key" + index, index));
+            }
+            executorService.shutdown();
+            assertTrue(executorService.awaitTermination(5, TimeUnit.MINUTES));
+            localStorage.flush();
+
+            LocalStorage reloaded = new LocalStorageBuilder("stressstorage", FileLocalStorage.class)
+                    .storageId("test.localstorage")
+                    .build();
+
+            assertThat(reloaded.toSortedMap(), is(localStorage.toSortedMap()));
+            assertThat(reloaded.getItemCount(), is(CONCURRENT_WRITERS));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testWriteBehindRejectedExecutor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        LocalStorageBuilder builder = new LocalStorageBuilder("rejectedstorage", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .saveOnWrite(true)
+                .writeBehind(true)
+                .executor(executor);
+
+        LocalStorage localStorage = builder.build();
+        try {
+            localStorage.put("a", "1");
+            localStorage.flush();
+            localStorage.put("b", "2");
+            localStorage.flush();
+            assertThat(builder.build().toSortedMap(), is(Map.of("a", "1", "b", "2")));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testWriteBehindFailure() throws Exception {
+        LocalStorageBuilder builder = new LocalStorageBuilder("failingstorage", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .saveOnWrite(true)
+                .writeBehind(true);
+
+        FileLocalStorage localStorage = (FileLocalStorage) builder.build();
+        // a non-empty directory in place of the file makes every save fail
+        Path blocker = localStorage.getFilePath().resolve("blocker");
+        try {
+            Files.createDirectories(blocker);
+            assertThrows(LocalStorageException.class, () -> {
+                // the write itself fails if its background save happens to fail first
+                localStorage.put("a", "1");
+                localStorage.flush();
+            });
+            assertThrows(LocalStorageException.class, () -> localStorage.put("b", "2"));
+
+            Files.delete(blocker);
+            Files.delete(localStorage.getFilePath());
+            localStorage.flush();
+            localStorage.put("c", "3");
+            localStorage.flush();
+            assertThat(builder.build().toSortedMap(), is(Map.of("a", "1", "b", "2", "c", "3")));
+        } finally {
+            if (Files.isDirectory(localStorage.getFilePath())) {
+                Files.deleteIfExists(blocker);
+                Files.delete(localStorage.getFilePath());
+            }
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testReplication() throws Exception {
+        PipeReplicationTransport pipeTransport = new PipeReplicationTransport();
+        testReplication(pipeTransport, pipeTransport);
+
+        Path socketFile = Files.createTempDirectory("replication").resolve("primary.sock");
+        SocketAddress address = UnixDomainSocketAddress.of(socketFile);
+        try {
+            testReplication(new SocketReplicationTransport(address), new SocketReplicationTransport(address));
+        } finally {
+            Files.deleteIfExists(socketFile);
+            Files.deleteIfExists(socketFile.getParent());
+        }
+    }
+
+    private void testReplication(ReplicationTransport primaryTransport,
+                                 ReplicationTransport followerTransport) throws Exception {
+        LocalStorage primary = new LocalStorageBuilder("primary", FileLocalStorage.class).build();
+        LocalStorage follower = new LocalStorageBuilder("follower", FileLocalStorage.class).build();
+        primary.put("before", "1").putBytes("bytes", new byte[]{0, 1, 2});
+
+        try (ReplicationPrimary replicationPrimary = new ReplicationPrimary(primary, primaryTransport).start();
+             ReplicationFollower replicationFollower = new ReplicationFollower(follower, followerTransport).start()) {
+
+            assertTrue(replicationFollower.awaitVersion(primary.snapshot().getVersion(), Duration.ofSeconds(10)));
+            assertThat(replicationPrimary.getFollowerCount(), is(1));
+            assertTrue(replicationFollower.isConnected());
+            assertThat(replicationFollower.getLastError(), is((Object) null));
+            assertThat(follower.toSortedMap(), is(primary.toSortedMap()));
+
+            for (int i = 0; i < 1_000; i++) {
+                primary.put("key" + i, i);
+            }
+            primary.remove("before");
+            assertTrue(replicationFollower.awaitVersion(primary.snapshot().getVersion(), Duration.ofSeconds(10)));
+            assertThat(follower.toSortedMap(), is(primary.toSortedMap()));
+            assertArrayEquals(new byte[]{0, 1, 2}, follower.getBytes("bytes"));
+
+            primary.clear();
+            assertTrue(replicationFollower.awaitVersion(primary.snapshot().getVersion(), Duration.ofSeconds(10)));
+            assertThat(follower.getItemCount(), is(0));
+        }
+    }
+
+    @Test
+    void testSocketTransportAddress() throws Exception {
+        assertThrows(LocalStorageException.class,
+                () -> new SocketReplicationTransport(new InetSocketAddress("0.0.0.0", 0)));
+        assertThrows(LocalStorageException.class,
+                () -> new SocketReplicationTransport(InetSocketAddress.createUnresolved("localhost", 1)));
+
+        try (SocketReplicationTransport transport =
+                     new SocketReplicationTransport(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            assertTrue(((InetSocketAddress) transport.bind()).getAddress().isLoopbackAddress());
+        }
+    }
+
+    @Test
+    void testReplicationFollowerError() throws Exception {
+        Path socketFile = Files.createTempDirectory("replication").resolve("missing.sock");
+        LocalStorage follower = new LocalStorageBuilder("follower", FileLocalStorage.class).build();
+        try (ReplicationFollower replicationFollower = new ReplicationFollower(
+                follower, new SocketReplicationTransport(UnixDomainSocketAddress.of(socketFile))).start()) {
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (replicationFollower.getLastError() == null && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(replicationFollower.getLastError() instanceof IOException);
+            assertThat(replicationFollower.isConnected(), is(false));
+            assertThat(replicationFollower.getVersion(), is(-1L));
+        } finally {
+            Files.deleteIfExists(socketFile.getParent());
+        }
+    }
+
+    @Test
+    void testCorruptReplicationLength() throws Exception {
+        for (int length : new int[]{-1, Integer.MAX_VALUE}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream outputStream = new DataOutputStream(bytes);
+            outputStream.writeLong(1);
+            outputStream.writeByte(1);
+            outputStream.writeByte(3);
+            outputStream.writeInt(length);
+
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            assertThrows(LocalStorageException.class, () -> ReplicationLogHelper.readFrame(inputStream));
+        }
+    }
+
+    @Test
+    void testMappedNumbers() throws Exception {
+        FileLocalStorage localStorage = (FileLocalStorage) new LocalStorageBuilder("numbers", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .build();
+        try {
+            MappedNumbers.Counter counter = localStorage.numbers().counter("requests");
+            MappedNumbers.Gauge gauge = localStorage.numbers().gauge("load");
+
+            ExecutorService executorService = Executors.newFixedThreadPool(4);
+            for (int i = 0; i < 10_000; i++) {
+                executorService.execute(() -> {
+                    counter.incrementAndGet();
+                    gauge.addAndGet(0.5);
+                });
+            }
+            executorService.shutdown();
+            assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+
+            for (int i = 0; i < 1_000; i++) {
+                localStorage.numbers().counter("key" + i).set(i);
+            }
+            assertThrows(LocalStorageException.class, () -> localStorage.numbers().gauge("requests"));
+            localStorage.save();
+            assertThat(localStorage.contains("requests"), is(false));
+            assertThat(localStorage.getLong("requests", -1), is(-1L));
+
+            FileLocalStorage other = (FileLocalStorage) new LocalStorageBuilder("numbers", FileLocalStorage.class)
+                    .storageId("test.localstorage")
+                    .build();
+            assertThrows(LocalStorageException.class, other::numbers);
+
+            localStorage.close();
+            assertThrows(LocalStorageException.class, counter::get);
+            assertThrows(LocalStorageException.class, () -> gauge.set(1));
+
+            try (FileLocalStorage reopened = other) {
+                assertThat(reopened.numbers().counter("requests").get(), is(10_000L));
+                assertThat(reopened.numbers().gauge("load").get(), is(5_000.0));
+                assertThat(reopened.numbers().counter("key999").get(), is(999L));
+                assertThat(reopened.numbers().getKeys().size(), is(1_002));
+            }
+            assertThat(localStorage.numbers().counter("requests").get(), is(10_000L));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testCorruptMappedNumbers() throws Exception {
+        Path filePath = Files.createTempFile("numbers", ".lsn");
+        try {
+            MappedNumbers numbers = MappedNumbers.open(filePath);
+            numbers.counter("requests").set(1);
+            numbers.close();
+            byte[] bytes = Files.readAllBytes(filePath);
+
+            for (int offset : new int[]{8, 15, 16, 19}) {
+                byte[] corrupt = bytes.clone();
+                corrupt[offset] = (byte) 0x7f;
+                Files.write(filePath, corrupt);
+                assertThrows(LocalStorageException.class, () -> MappedNumbers.open(filePath));
+            }
+        } finally {
+            Files.deleteIfExists(filePath);
+        }
+    }
+
+    @Test
+    void testBinaryFormat() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) i;
+
+        LocalStorageBuilder builder = new LocalStorageBuilder("binarystorage", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .format(LocalStorageFormat.BINARY);
+
+        LocalStorage localStorage = builder.build();
+        try {
+            localStorage.putBytes("binary", bytes).put("text", "line\nbreak").save();
+
+            LocalStorage reloaded = builder.build();
+            assertArrayEquals(bytes, reloaded.getBytes("binary"));
+            assertThat(reloaded.getString("text"), is("line\nbreak"));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testFileHeader() throws Exception {
+        LocalStorageBuilder builder = new LocalStorageBuilder("headerstorage", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .compress(true);
+
+        FileLocalStorage localStorage = (FileLocalStorage) builder.build();
+        try {
+            for (int i = 0; i < 1_000; i++) localStorage.put("key" + i, "value" + i);
+            localStorage.save();
+            LocalStorage reloaded = builder.build().put("kept", "1");
+            assertThat(reloaded.getItemCount(), is(1_001));
+
+            Path filePath = localStorage.getFilePath();
+            byte[] bytes = Files.readAllBytes(filePath);
+            byte[] corrupted = bytes.clone();
+            corrupted[corrupted.length / 2] ^= 1;
+            Files.write(filePath, corrupted);
+            assertThrows(LocalStorageException.class, builder::build);
+            assertThrows(LocalStorageException.class, builder.lazyOpen(true).build()::getItemCount);
+            assertThrows(LocalStorageException.class, reloaded::load);
+            assertThat(reloaded.getItemCount(), is(1_001));
+            assertThat(reloaded.getString("kept"), is("1"));
+
+            Files.write(filePath, Arrays.copyOf(bytes, bytes.length - 1));
+            assertThrows(LocalStorageException.class, reloaded::load);
+
+            Files.writeString(filePath, "a=1\nb=2\n");
+            assertThat(builder.build().toSortedMap(), is(Map.of("a", "1", "b", "2")));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testRecovery() throws Exception {
+        LocalStorageBuilder builder = new LocalStorageBuilder("recoverystorage", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .format(LocalStorageFormat.BINARY);
+
+        FileLocalStorage localStorage = (FileLocalStorage) builder.build();
+        try {
+            for (int i = 0; i < 100; i++) localStorage.put("key" + i, "value of entry " + i);
+            localStorage.save();
+            assertTrue(localStorage.verify().isValid());
+
+            Path filePath = localStorage.getFilePath();
+            byte[] bytes = Files.readAllBytes(filePath);
+            bytes[bytes.length / 2] ^= 1;
+            Files.write(filePath, bytes);
+
+            LocalStorageVerification verification = localStorage.verifyAsync().join();
+            assertThat(verification.isValid(), is(false));
+            assertThat(verification.recordCount(), is(99));
+            assertThrows(LocalStorageException.class, builder::build);
+            assertThat(localStorage.getOpenRecovery(), is((Object) null));
+            FileLocalStorage recovered = (FileLocalStorage) builder.recover(true).build();
+            assertThat(recovered.getItemCount(), is(99));
+            assertThat(recovered.getOpenRecovery().recordCount(), is(99));
+            assertThat(recovered.getOpenRecovery().isValid(), is(false));
+
+            Files.writeString(filePath, "a=1\n=broken\nb=2\n");
+            verification = localStorage.verify();
+            assertThat(verification.recordCount(), is(2));
+            assertThat(verification.problems().size(), is(1));
+            assertTrue(verification.problems().get(0).startsWith("Malformed line 2"));
+            assertThat(builder.build().toSortedMap(), is(Map.of("a", "1", "b", "2")));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testNoSaveAfterFailedLoad() throws Exception {
+        LocalStorageBuilder builder = new LocalStorageBuilder("brokenstorage", FileLocalStorage.class)
+                .storageId("test.localstorage")
+                .saveOnWrite(true);
+
+        FileLocalStorage localStorage = (FileLocalStorage) builder.build();
+        try {
+            String content = "a=1\nb=2\n=broken\nc=3\n";
+            Files.createDirectories(localStorage.getFilePath().getParent());
+            Files.writeString(localStorage.getFilePath(), content);
+            assertThrows(LocalStorageException.class, builder::build);
+
+            FileLocalStorage broken = localStorage;
+            assertThrows(LocalStorageException.class, broken::load);
+            assertThrows(LocalStorageException.class, () -> broken.put("d", "4"));
+            assertThat(Files.readString(broken.getFilePath()), is(content));
+
+            broken.recover();
+            broken.put("e", "5");
+            assertThat(builder.build().toSortedMap(), is(Map.of("a", "1", "b", "2", "c", "3", "d", "4", "e", "5")));
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    /**
+     * Virtual threads on Java 21+, a fixed pool of 64 platform threads otherwise
+     */
+    private static ExecutorService createWriterExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(64);
+        }
+    }
 }
@@ -21,10 +21,31 @@ import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 abstract public class LocalStorageTest {
 
@@ -118,6 +139,446 @@ abstract public class LocalStorageTest {
         createLocalStorage("  \t");
     }
 
+    @Test
+    void testMetrics() {
+        List<LocalStorageMetrics.Operation> operations = new CopyOnWriteArrayList<>();
+
+        LocalStorage localStorage = new LocalStorageBuilder(STORAGE_FILENAME, localStorageType)
+                .storageId("test.localstorage")
+                .saveOnWrite(true)
+                .metrics((storage, operation) -> {
+                    operations.add(operation);
+                    return LocalStorageMetrics.Sample.NOOP;
+                })
+                .build();
+
+        localStorage.put("key", "value");
+        localStorage.toSortedMapGroup("k");
+        localStorage.deleteResources();
+
+        assertTrue(operations.contains(LocalStorageMetrics.Operation.SAVE_ON_WRITE));
+        assertTrue(operations.contains(LocalStorageMetrics.Operation.SAVE));
+        assertTrue(operations.contains(LocalStorageMetrics.Operation.GROUP_QUERY));
+    }
+
+    @Test
+    void testAsync() {
+        LocalStorage localStorage = new LocalStorageBuilder(STORAGE_FILENAME, localStorageType)
+                .storageId("test.localstorage")
+                .build();
+
+        try {
+            localStorage.put("key", "value");
+            localStorage.saveAsync().join();
+            localStorage.clear();
+
+            assertThat(localStorage.loadAsync().join().getString("key"), is("value"));
+
+            CompletionException exception = assertThrows(CompletionException.class, () ->
+                    localStorage.importFromAsync(Path.of("nonexistent-" + STORAGE_FILENAME)).join()
+            );
+            assertTrue(exception.getCause() instanceof IOException);
+        } finally {
+            localStorage.deleteResourcesAsync().join();
+        }
+    }
+
+    @Test
+    void testShared() {
+        LocalStorageBuilder builder = new LocalStorageBuilder(STORAGE_FILENAME, localStorageType)
+                .storageId("test.localstorage")
+                .shared(true);
+
+        Class<? extends LocalStorage> otherType =
+                localStorageType == FileLocalStorage.class ? EncryptedFileLocalStorage.class : FileLocalStorage.class;
+
+        try (LocalStorage first = builder.build(); LocalStorage second = builder.build()) {
+            assertSame(first, second);
+            assertThrows(LocalStorageException.class, () ->
+                    new LocalStorageBuilder(STORAGE_FILENAME, otherType)
+                            .storageId("test.localstorage")
+                            .shared(true)
+                            .build()
+            );
+        }
+
+        try (LocalStorage first = builder.build()) {
+            LocalStorage second = builder.build();
+            second.close();
+            try (LocalStorage third = builder.build()) {
+                assertSame(first, third);
+            }
+
+            CompletableFuture.runAsync(() -> {
+                LocalStorage other = builder.build();
+                other.close();
+                other.close();
+            }).join();
+            try (LocalStorage third = builder.build()) {
+                assertSame(first, third);
+            }
+        }
+    }
+
+    @Test
+    void testFreeze() throws Exception {
+        LocalStorage localStorage = createLocalStorage("""
+                int=42
+                long=10000000000
+                double=1.5
+                bool=TRUE
+                text=hello
+                """);
+        try {
+            localStorage.putBytes("bytes", new byte[]{1, 2});
+
+            try (FrozenLocalStorage frozen = localStorage.freeze()) {
+                assertThat(frozen.getItemCount(), is(6));
+                assertThat(frozen.getInt("int", 0), is(42));
+                assertThat(frozen.getInt("long", -1), is(-1));
+                assertThat(frozen.getLong("long", 0), is(10_000_000_000L));
+                assertThat(frozen.getByte("int", (byte) 0), is((byte) 42));
+                assertThat(frozen.getDouble("double", 0), is(1.5));
+                assertThat(frozen.getDouble("int", 0), is(42.0));
+                assertThat(frozen.getFloat("double", 0), is(1.5f));
+                assertThat(frozen.getInt("text", 7), is(7));
+                assertThat(frozen.getBoolean("bool", false), is(true));
+                assertThat(frozen.getBoolean("text", true), is(false));
+                assertThat(frozen.getBoolean("missing", true), is(true));
+                assertThat(frozen.getString("text"), is("hello"));
+                assertThat(frozen.getString("bytes"), is(localStorage.getString("bytes")));
+                assertArrayEquals(new byte[]{1, 2}, frozen.getBytes("bytes"));
+                assertNull(frozen.getString("missing"));
+
+                localStorage.put("int", 43);
+                localStorage.remove("text");
+                assertTrue(frozen.awaitVersion(localStorage.snapshot().getVersion(), Duration.ofSeconds(10)));
+                assertThat(frozen.getItemCount(), is(5));
+                assertThat(frozen.getInt("int", 0), is(43));
+                assertThat(frozen.contains("text"), is(false));
+            }
+        } finally {
+            localStorage.deleteResources();
+        }
+    }
+
+    @Test
+    void testSingleLoadOnBuild() {
+        createLocalStorage(null).put("key", "value");
+
+        AtomicInteger loads = new AtomicInteger();
+        LocalStorage localStorage = new LocalStorageBuilder(STORAGE_FILENAME, localStorageType)
+                .storageId("test.localstorage")
+                .metrics((storage, operation) -> {
+                    if (operation == LocalStorageMetrics.Operation.LOAD) loads.incrementAndGet();
+                    return LocalStorageMetrics.Sample.NOOP;
+                })
+                .build();
+
+        assertThat(localStorage.getString("key"), is("value"));
+        assertThat(loads.get(), is(1));
+    }
+
+    @Test
+    void testLazyOpen() throws Exception {
+        createLocalStorage(null).put("key", "value");
+
+        AtomicInteger loads = new AtomicInteger();
+        LocalStorageBuilder builder = new LocalStorageBuilder(STORAGE_FILENAME, localStorageType)
+                .storageId("test.localstorage")
+                .lazyOpen(true)
+                .metrics((storage, operation) -> {
+                    if (operation == LocalStorageMetrics.Operation.LOAD) loads.incrementAndGet();
+                    return LocalStorageMetrics.Sample.NOOP;
+                });
+
+        LocalStorage localStorage = builder.build();
+        assertThat(loads.get(), is(0));
+
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(CompletableFuture.supplyAsync(() -> localStorage.getString("key")));
+        }
+        for (CompletableFuture<String> future : futures) {
+            assertThat(future.get(), is("value"));
+        }
+        assertThat(loads.get(), is(1));
+
+        LocalStorage preloaded = builder.preload(true).build();
+        assertThat(preloaded.getString("key"), is("value"));
+        assertThat(loads.get(), is(2));
+    }
+
+    @Test
+    void testSnapshot() {
+        LocalStorage localStorage = createLocalStorage("""
+            b=2
+            a=1
+            """);
+
+        LocalStorageSnapshot snapshot = localStorage.snapshot();
+        localStorage.put("a", "changed");
+        localStorage.remove("b");
+
+        assertThat(snapshot.getString("a"), is("1"));
+        assertThat(snapshot.getString("b"), is("2"));
+        assertThat(List.copyOf(snapshot.asMap().keySet()), is(List.of("a", "b")));
+        assertThat(localStorage.getString("a"), is("changed"));
+        assertNull(localStorage.getString("b"));
+    }
+
+    @Test
+    void testScan() {
+        LocalStorage localStorage = createLocalStorage("""
+            a=0
+            user.1=1
+            user.2=2
+            user.3=3
+            user.4=4
+            z=5
+            """);
+
+        assertThat(localStorage.scan().keyStartsWith("user.").count(), is(4));
+        assertThat(keys(localStorage.scan().keyStartsWith("user.").limit(2).list()), is(List.of("user.1", "user.2")));
+        assertThat(keys(localStorage.scan().keyStartsWith("user.").after("user.2").limit(2).list()), is(List.of("user.3", "user.4")));
+        assertThat(keys(localStorage.scan().from("user.2").to("user.4").list()), is(List.of("user.2", "user.3")));
+        assertThat(keys(localStorage.scan().offset(4).list()), is(List.of("user.4", "z")));
+        assertThat(localStorage.stream("user.").mapToInt(entry -> Integer.parseInt(entry.getValue())).sum(), is(10));
+    }
+
+    @Test
+    void testBytes() {
+        byte[] bytes = {0, 1, 2, -1, '\n', '='};
+
+        createLocalStorage(null).putBytes("binary", bytes).put("text", "value")
+                .put("prefixed", "{base64}AQI=").put("escaped", "{string}value");
+
+        LocalStorage localStorage = createLocalStorage(null);
+        assertArrayEquals(bytes, localStorage.getBytes("binary"));
+        assertThat(localStorage.getByteBuffer("binary").remaining(), is(bytes.length));
+        assertTrue(localStorage.getString("binary").startsWith("{base64}"));
+        assertThat(localStorage.getString("text"), is("value"));
+        assertThat(localStorage.getString("prefixed"), is("{base64}AQI="));
+        assertThat(localStorage.getString("escaped"), is("{string}value"));
+        assertTrue(localStorage.snapshot().getEntries().get("prefixed") instanceof String);
+    }
+
+    @Test
+    void testValueCodecs() {
+        ValueCodec<Point> pointCodec = ValueCodecs.record(Point.class);
+        Point point = new Point("a,b\\c", 1, List.of(2L, 3L), Thread.State.NEW);
+
+        createLocalStorage(null)
+                .put("point", point, pointCodec)
+                .put("numbers", List.of(1, 2, 3), ValueCodecs.list(ValueCodecs.INT))
+                .put("empty", List.of(), ValueCodecs.list(ValueCodecs.STRING))
+                .put("int", 42);
+
+        LocalStorage localStorage = createLocalStorage(null);
+        Point decoded = localStorage.get("point", pointCodec);
+        assertThat(decoded, is(point));
+        assertSame(decoded, localStorage.get("point", pointCodec));
+        assertThat(localStorage.get("numbers", ValueCodecs.list(ValueCodecs.INT)), is(List.of(1, 2, 3)));
+        assertThat(localStorage.get("empty", ValueCodecs.list(ValueCodecs.STRING)), is(List.of()));
+        assertThat(localStorage.get("int", ValueCodecs.INT), is(42));
+        assertNull(localStorage.get("absent", ValueCodecs.INT));
+        assertThat(localStorage.get("point", ValueCodecs.INT, -1), is(-1));
+        assertThrows(LocalStorageException.class, () -> localStorage.get("point", ValueCodecs.INT));
+
+        localStorage.put("point", new Point("", 0, List.of(), Thread.State.RUNNABLE), pointCodec);
+        assertThat(localStorage.get("point", pointCodec).name(), is(""));
+    }
+
+    @Test
+    void testIndexes() {
+        LocalStorage localStorage = createLocalStorage("""
+                user.1.status=active
+                user.2.status=blocked
+                user.3.status=active
+                """);
+        localStorage.createIndex("user.");
+        assertThat(localStorage.findKeys("user.", "active"), is(Set.of("user.1.status", "user.3.status")));
+
+        localStorage.put("user.2.status", "active").put("user.4.status", "active").put("other", "active");
+        localStorage.remove("user.1.status");
+        localStorage.save();
+        assertThat(List.copyOf(localStorage.findKeys("user.", "active")),
+                is(List.of("user.2.status", "user.3.status", "user.4.status")));
+        assertThat(localStorage.findKeys("user.", "blocked"), is(Set.of()));
+        assertThat(localStorage.findKeys("", "active").size(), is(4));
+
+        LocalStorage reloaded = new LocalStorageBuilder(STORAGE_FILENAME, localStorageType)
+                .storageId("test.localstorage")
+                .index("user.")
+                .build();
+        assertTrue(reloaded.snapshot().hasIndex("user."));
+        assertThat(reloaded.findKeys("user.", "active"), is(Set.of("user.2.status", "user.3.status", "user.4.status")));
+
+        reloaded.clear();
+        assertThat(reloaded.findKeys("user.", "active"), is(Set.of()));
+    }
+
+    @Test
+    void testBackup() throws IOException {
+        Path directory = Files.createTempDirectory("backup");
+        Path fullBackup = directory.resolve("full");
+        Path incrementalBackup = directory.resolve("incremental");
+
+        LocalStorage localStorage = createLocalStorage("""
+                a=1
+                b=2
+                c=3
+                """);
+        try {
+            LocalStorageCheckpoint checkpoint = localStorage.backup(fullBackup);
+            assertThat(checkpoint.itemCount(), is(3));
+
+            localStorage.put("b", "changed").putBytes("d", new byte[]{1, 2});
+            localStorage.remove("c");
+
+            LocalStorageCheckpoint incremental = localStorage.backupSince(checkpoint.id(), incrementalBackup);
+            assertThat(incremental.itemCount(), is(3));
+            assertThat(Files.readString(incrementalBackup), is("b=changed\nc=null\nd={base64}AQI=\n"));
+
+            Map<String, String> restored = new TreeMap<>();
+            createLocalStorage(null).clear()
+                    .importFrom(fullBackup)
+                    .importFrom(incrementalBackup)
+                    .exportTo(restored);
+            assertThat(restored, is(localStorage.toSortedMap()));
+
+            localStorage.releaseCheckpoint(checkpoint.id());
+            assertThrows(LocalStorageException.class,
+                    () -> localStorage.backupSince(checkpoint.id(), OutputStream.nullOutputStream()));
+
+            LocalStorageCheckpoint next = localStorage.backupSince(incremental.id(), OutputStream.nullOutputStream());
+            assertThat(next.itemCount(), is(0));
+            assertThrows(LocalStorageException.class,
+                    () -> localStorage.backupSince(incremental.id(), OutputStream.nullOutputStream()));
+            localStorage.releaseCheckpoint(next.id());
+            assertThrows(LocalStorageException.class,
+                    () -> localStorage.backupSince(next.id(), OutputStream.nullOutputStream()));
+        } finally {
+            Files.deleteIfExists(fullBackup);
+            Files.deleteIfExists(incrementalBackup);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    void testNamespace() throws IOException {
+        LocalStorage localStorage = createLocalStorage("""
+                plugin.a=1
+                plugin.x.enabled=true
+                plugin.x.name=x
+                plugin.y=2
+                """);
+        LocalStorageNamespace namespace = localStorage.namespace("plugin.x.");
+
+        assertTrue(namespace.getBoolean("enabled", false));
+        assertThat(namespace.getItemCount(), is(2));
+        assertThat(namespace.toSortedMap(), is(Map.of("enabled", "true", "name", "x")));
+
+        namespace.put("count", 3).putAll(Map.of("nested.key", "value"));
+        assertThat(localStorage.getInt("plugin.x.count", 0), is(3));
+        assertThat(namespace.namespace("nested.").getString("key"), is("value"));
+        assertThat(namespace.stream().map(Map.Entry::getKey).toList(), is(List.of("count", "enabled", "name", "nested.key")));
+
+        Path exported = Files.createTempFile("namespace", ".ls");
+        try {
+            namespace.exportTo(exported);
+            namespace.clear();
+            assertTrue(namespace.isEmpty());
+            assertThat(localStorage.getItemCount(), is(2));
+
+            localStorage.namespace("copy.").importFrom(exported);
+            assertThat(localStorage.namespace("copy.").getItemCount(), is(4));
+            assertNull(createLocalStorage(null).getString("copy.name"));
+        } finally {
+            Files.deleteIfExists(exported);
+        }
+    }
+
+    @Test
+    void testMerge() throws IOException {
+        Path source = Files.createTempFile("merge", ".ls.gz");
+        try {
+            try (OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(source))) {
+                for (int i = 0; i < 250; i++) {
+                    outputStream.write("key%d=%d;new\n".formatted(i, i % 2 == 0 ? 9 : 1).getBytes(StandardCharsets.UTF_8));
+                }
+                outputStream.write("gone=null\nother=1\n".getBytes(StandardCharsets.UTF_8));
+            }
+
+            LocalStorage localStorage = createLocalStorage("""
+                    key0=5;old
+                    key1=5;old
+                    gone=5;old
+                    """);
+            List<LocalStorageMerge.Progress> progress = new ArrayList<>();
+            LocalStorageMerge.Progress result = localStorage.merge()
+                    .conflictPolicy(LocalStorageMerge.ConflictPolicy.newestWins(value -> Long.parseLong(value.split(";")[0])))
+                    .keyStartsWith("key")
+                    .batchSize(100)
+                    .progress(progress::add)
+                    .from(source);
+
+            assertThat(localStorage.getString("key0"), is("9;new"));
+            assertThat(localStorage.getString("key1"), is("5;old"));
+            assertThat(localStorage.getString("key249"), is("1;new"));
+            assertThat(localStorage.getString("gone"), is("5;old"));
+            assertNull(localStorage.getString("other"));
+            assertThat(progress.size(), is(3));
+            assertThat(result.entriesRead(), is(252L));
+            assertThat(result.entriesWritten(), is(249L));
+            assertThat(result.conflicts(), is(2L));
+            assertThat(result.bytesRead(), is(result.totalBytes()));
+
+            localStorage.merge().conflictPolicy(LocalStorageMerge.ConflictPolicy.KEEP_EXISTING).from(source);
+            assertThat(localStorage.getString("gone"), is("5;old"));
+            assertThat(localStorage.getString("other"), is("1"));
+
+            localStorage.importFrom(source);
+            assertThat(localStorage.getString("key1"), is("1;new"));
+            assertNull(localStorage.getString("gone"));
+        } finally {
+            Files.deleteIfExists(source);
+        }
+    }
+
+    @Test
+    void testBulkLoad() {
+        LocalStorage localStorage = createLocalStorage("""
+                a=existing
+                m=existing
+                """);
+        localStorage.createIndex("");
+
+        localStorage.bulkLoad(Stream.of(
+                Map.entry("z", "1"),
+                Map.entry("m", "replaced"),
+                Map.entry("b", "2"),
+                Map.entry("z", "last")
+        ));
+        localStorage.bulkLoad(Map.of("c", 3, "d", new byte[]{1}));
+
+        assertThat(List.copyOf(localStorage.toSortedMap().keySet()), is(List.of("a", "b", "c", "d", "m", "z")));
+        assertThat(localStorage.getString("m"), is("replaced"));
+        assertThat(localStorage.getString("z"), is("last"));
+        assertThat(localStorage.findKeys("", "existing"), is(Set.of("a")));
+
+        LocalStorage reloaded = createLocalStorage(null);
+        assertThat(reloaded.getItemCount(), is(6));
+        assertArrayEquals(new byte[]{1}, reloaded.getBytes("d"));
+    }
+
+    record Point(String name, int x, List<Long> values, Thread.State state) {
+    }
+
+    private static List<String> keys(List<Map.Entry<String, String>> entries) {
+        return entries.stream().map(Map.Entry::getKey).toList();
+    }
+
     @AfterEach
     void dispose() {
         createLocalStorage(null).deleteResources();
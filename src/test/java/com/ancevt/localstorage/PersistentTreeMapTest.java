@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2022 the original author or authors.
+ * See the notice.md file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ancevt.localstorage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.StreamSupport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+
+public class PersistentTreeMapTest {
+
+    @Test
+    void testRandomOperationsMatchTreeMap() {
+        Random random = new Random(42);
+        TreeMap<String, String> expected = new TreeMap<>();
+        PersistentTreeMap<String> actual = PersistentTreeMap.empty();
+
+        for (int i = 0; i < 20_000; i++) {
+            String key = "key" + random.nextInt(2_000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.remove(key);
+            } else {
+                String value = "value" + i;
+                expected.put(key, value);
+                actual = actual.put(key, value);
+            }
+        }
+
+        assertThat(actual.size(), is(expected.size()));
+        assertThat(toList(actual.iterator()), is(new ArrayList<>(expected.entrySet())));
+        assertThat(toList(actual.iterator("key5")), is(new ArrayList<>(expected.tailMap("key5").entrySet())));
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertThat(actual.get(entry.getKey()), is(entry.getValue()));
+        }
+    }
+
+    @Test
+    void testParallelSpliterator() {
+        PersistentTreeMap<String> map = PersistentTreeMap.empty();
+        for (int i = 0; i < 100_000; i++) {
+            map = map.put("key" + i, String.valueOf(i));
+        }
+
+        long sum = StreamSupport.stream(map.spliterator(0, map.size()), true)
+                .mapToLong(entry -> Long.parseLong(entry.getValue()))
+                .sum();
+
+        assertThat(sum, is(99_999L * 100_000L / 2));
+    }
+
+    @Test
+    void testForEachChange() {
+        Random random = new Random(7);
+        PersistentTreeMap<String> from = PersistentTreeMap.empty();
+        for (int i = 0; i < 5_000; i++) {
+            from = from.put("key" + random.nextInt(10_000), "value" + i);
+        }
+
+        PersistentTreeMap<String> to = from;
+        for (int i = 0; i < 200; i++) {
+            String key = "key" + random.nextInt(10_000);
+            to = random.nextBoolean() ? to.remove(key) : to.put(key, "changed" + i);
+        }
+
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            String key = "key" + i;
+            String oldValue = from.get(key);
+            String newValue = to.get(key);
+            if (!Objects.equals(oldValue, newValue)) expected.put(key, oldValue + ">" + newValue);
+        }
+
+        TreeMap<String, String> actual = new TreeMap<>();
+        from.forEachChange(to, (key, oldValue, newValue) -> actual.put(key, oldValue + ">" + newValue));
+
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    void testOfSorted() {
+        int size = 10_000;
+        String[] keys = new String[size];
+        Object[] values = new Object[size];
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            expected.put("key" + i, "value" + i);
+        }
+        int index = 0;
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            keys[index] = entry.getKey();
+            values[index++] = entry.getValue();
+        }
+
+        PersistentTreeMap<String> map = PersistentTreeMap.ofSorted(keys, values, size);
+        assertThat(toList(map.iterator()), is(new ArrayList<>(expected.entrySet())));
+
+        map = map.put("key", "new").remove("key5000");
+        expected.put("key", "new");
+        expected.remove("key5000");
+        assertThat(toList(map.iterator()), is(new ArrayList<>(expected.entrySet())));
+        assertThat(map.rank("key6"), is(expected.headMap("key6").size()));
+    }
+
+    @Test
+    void testOldVersionIsUnchanged() {
+        PersistentTreeMap<String> first = PersistentTreeMap.<String>empty().put("a", "1").put("b", "2");
+        PersistentTreeMap<String> second = first.put("a", "changed").remove("b");
+
+        assertThat(first.get("a"), is("1"));
+        assertThat(first.get("b"), is("2"));
+        assertThat(second.get("a"), is("changed"));
+        assertThat(second.size(), is(1));
+    }
+
+    private static List<Map.Entry<String, String>> toList(Iterator<Map.Entry<String, String>> iterator) {
+        List<Map.Entry<String, String>> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+}